@@ -2,15 +2,20 @@ package com.anaconda.skein;
 
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
 import com.google.common.util.concurrent.AtomicDouble;
 import com.google.protobuf.ByteString;
 
 import io.grpc.Server;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.ssl.ClientAuth;
@@ -52,6 +57,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -60,14 +66,17 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ApplicationMaster {
@@ -86,24 +95,95 @@ public class ApplicationMaster {
   private static final int MIN_EXECUTOR_THREADS = 0;
   private static final int MAX_EXECUTOR_THREADS = 25;
 
+  // Bounds on the history of key-value store revisions kept for reads at a
+  // past revision. Old revisions are dropped once either bound is exceeded.
+  private static final int KV_HISTORY_REVISIONS = 1000;
+  private static final long KV_HISTORY_BYTES = 16 * 1024 * 1024;
+
+  // The key-value store log is compacted into a snapshot once it's larger
+  // than both the previous snapshot and this size.
+  private static final long KV_LOG_MIN_SNAPSHOT_BYTES = 64 * 1024 * 1024;
+
+  // Lease expiration is checked every tick. The wheel covers ~50 seconds per
+  // rotation, longer leases wait for multiple rotations.
+  private static final long LEASE_TICK_MS = 100;
+  private static final int LEASE_WHEEL_SIZE = 512;
+
+  // Quotas on the estimated memory used by the key-value store, set in the
+  // YARN configuration. By default the store may use half the heap (less the
+  // revision history), with no per-service limit. Negative for no limit.
+  private static final String KV_MAX_BYTES = "skein.kv.max-bytes";
+  private static final String KV_MAX_SERVICE_BYTES = "skein.kv.max-service-bytes";
+
+  // Values at least this size are stored compressed, set in the YARN
+  // configuration. Negative to disable compression.
+  private static final String KV_COMPRESSION_THRESHOLD = "skein.kv.compression-threshold";
+  private static final int KV_DEFAULT_COMPRESSION_THRESHOLD = 64 * 1024;
+
+  // Streams are stored in chunks of this many records. By default each
+  // stream retains up to STREAM_DEFAULT_MAX_BYTES of the latest records.
+  private static final int STREAM_CHUNK_SIZE = 256;
+  private static final long STREAM_DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+  // Limits on the records returned by a single StreamRead call
+  private static final int STREAM_READ_DEFAULT_LIMIT = 1000;
+  private static final long STREAM_READ_MAX_BYTES = 1024 * 1024;
+
+  // The maximum number of undelivered events buffered per watch stream, and
+  // what to do when it's exceeded ("coalesce" to the latest event per key, or
+  // "cancel" the most lagging watch), set in the YARN configuration.
+  private static final String KV_WATCH_QUEUE_SIZE = "skein.kv.watch.queue-size";
+  private static final int KV_DEFAULT_WATCH_QUEUE_SIZE = 10000;
+  private static final String KV_WATCH_OVERFLOW_POLICY = "skein.kv.watch.overflow-policy";
+  // The number of threads sending watch responses
+  private static final int WATCH_SEND_THREADS = 2;
+  // The default maximum number of events per batch, for watches with a
+  // batching window
+  private static final int WATCH_DEFAULT_BATCH_SIZE = 1000;
+  // The longest batching window allowed. Batched events are held in memory,
+  // so they're bounded in time as well as by the watch queue size.
+  private static final long WATCH_MAX_BATCH_WINDOW = 60000;
+  // The maximum number of keys and bytes per initial snapshot response
+  private static final int WATCH_SNAPSHOT_CHUNK_SIZE = 1000;
+  private static final long WATCH_SNAPSHOT_CHUNK_BYTES = 1024 * 1024;
+  // Bounds on the history of recent events kept for resuming watches. The
+  // number of events is set in the YARN configuration.
+  private static final String KV_WATCH_HISTORY_SIZE = "skein.kv.watch.history-size";
+  private static final int KV_DEFAULT_WATCH_HISTORY_SIZE = 10000;
+  private static final long KV_WATCH_HISTORY_BYTES = 16 * 1024 * 1024;
+  // Small events are encoded once and cached, for sending to many watchers
+  private static final int WATCH_ENCODED_CACHE_SLOTS = 1024;
+  private static final int WATCH_ENCODED_MAX_EVENT_SIZE = 16 * 1024;
+
+  // The maximum number of undelivered pub/sub messages buffered per
+  // subscriber. Once full, the oldest messages are dropped.
+  private static final int SUBSCRIBER_BUFFER_SIZE = 1000;
+
+  // The default maximum number of results per message from GetRangeStream.
+  private static final int RANGE_STREAM_CHUNK_SIZE = 1000;
+
   // Exit codes.
   private static final int EXIT_OK = 0;
   private static final int EXIT_MASTER_FAILURE = 10;
   private static final int EXIT_DRIVER_FAILURE = 11;
   private static final int EXIT_SERVICE_FAILURE = 12;
 
-  private final Configuration conf = new YarnConfiguration();
+  private final Configuration conf;
 
   // Heartbeat intervals between the AM and RM
-  private final long idleHeartbeat = Math.min(
-      5000,
-      Math.max(
-        0,
-        conf.getInt(YarnConfiguration.RM_AM_EXPIRY_INTERVAL_MS,
-                    YarnConfiguration.DEFAULT_RM_AM_EXPIRY_INTERVAL_MS) / 2
-      )
-  );
-  private final long pendingHeartbeat = Math.min(1000, idleHeartbeat);
+  private final long idleHeartbeat;
+  private final long pendingHeartbeat;
+
+  private final ValueCompressor valueCompressor;
+
+  private final int watchQueueSize;
+  private final boolean watchOverflowCoalesce;
+  private final QueueStats watchQueueStats = new QueueStats();
+  // Guarded by the keyValueStore lock
+  private final WatchHistory watchHistory;
+  private final ThreadPoolExecutor watchExecutor = Utils.newThreadPoolExecutor(
+      "watch-send-executor", WATCH_SEND_THREADS, WATCH_SEND_THREADS, true);
+  private final ScheduledThreadPoolExecutor watchBatchTimer = new ScheduledThreadPoolExecutor(
+      1, new Utils.CustomThreadFactory("watch-batch-timer", true));
 
   private Model.ApplicationSpec spec;
   private ByteBuffer tokens;
@@ -115,9 +195,45 @@ public class ApplicationMaster {
   private ContainerId containerId;
   private Resource amResources;
 
-  private final TreeMap<String, Msg.KeyValue.Builder> keyValueStore =
-      new TreeMap<String, Msg.KeyValue.Builder>();
+  private final KeyValueStore keyValueStore =
+      new KeyValueStore(KV_HISTORY_REVISIONS, KV_HISTORY_BYTES);
   private final IntervalTree<Watcher> intervalTree = new IntervalTree<Watcher>();
+  private KeyValueLog keyValueLog;
+
+  // Leases, guarded by the keyValueStore lock
+  private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+  private final TimerWheel<Lease> leaseTimers =
+      new TimerWheel<Lease>(LEASE_WHEEL_SIZE, LEASE_TICK_MS, System.currentTimeMillis());
+  private long nextLeaseId = 1;
+
+  // Semaphores and barriers, guarded by the keyValueStore lock. Permits are
+  // tracked by token, for both holders and waiters.
+  private final Semaphores<Permit> semaphores = new Semaphores<Permit>();
+  private final Map<Long, Permit> permits = new HashMap<Long, Permit>();
+  private final Map<String, Barrier> barriers = new HashMap<String, Barrier>();
+  private long nextPermitToken = 1;
+
+  // Work queues, guarded by the keyValueStore lock. Popped items that need to
+  // be acknowledged are tracked by id until then.
+  private final Map<String, WorkQueue> queues = new HashMap<String, WorkQueue>();
+  private final Map<Long, Delivery> unacked = new HashMap<Long, Delivery>();
+  private long nextQueueItemId = 1;
+
+  // Streams, guarded by the map itself. Streams are independent of the
+  // key-value store, so appends and reads never wait on its lock.
+  private final Map<String, EventStream> streams = new HashMap<String, EventStream>();
+  // Timeouts for pending StreamRead calls, guarded by the streams lock
+  private final TimerWheel<StreamReader> streamReadTimeouts =
+      new TimerWheel<StreamReader>(LEASE_WHEEL_SIZE, LEASE_TICK_MS, System.currentTimeMillis());
+
+  // Pub/sub subscribers by topic, guarded by itself. Publishing never
+  // touches the key-value store.
+  private final Map<String, Set<SubscribeRequestStream>> topics =
+      new HashMap<String, Set<SubscribeRequestStream>>();
+
+  // Timeouts for pending QueuePop calls, guarded by the keyValueStore lock
+  private final TimerWheel<Popper> popTimeouts =
+      new TimerWheel<Popper>(LEASE_WHEEL_SIZE, LEASE_TICK_MS, System.currentTimeMillis());
 
   private final Map<String, ServiceTracker> services =
       new HashMap<String, ServiceTracker>();
@@ -143,6 +259,7 @@ public class ApplicationMaster {
   private NMClient nmClient;
   private ThreadPoolExecutor containerLaunchExecutor;
   private Thread allocatorThread;
+  private Thread leaseThread;
   private Process driverProcess;
   private Thread driverThread;
 
@@ -156,6 +273,39 @@ public class ApplicationMaster {
   private String finalMessage = ("Application master shutdown unexpectedly, "
                                  + "see logs for more information");
 
+  public ApplicationMaster() {
+    this(new YarnConfiguration());
+  }
+
+  // Run with the given configuration, rather than the one found on the
+  // classpath. Used by tests.
+  ApplicationMaster(Configuration conf) {
+    this.conf = conf;
+    idleHeartbeat = Math.min(
+        5000,
+        Math.max(
+          0,
+          conf.getInt(YarnConfiguration.RM_AM_EXPIRY_INTERVAL_MS,
+                      YarnConfiguration.DEFAULT_RM_AM_EXPIRY_INTERVAL_MS) / 2
+        )
+    );
+    pendingHeartbeat = Math.min(1000, idleHeartbeat);
+
+    valueCompressor = new ValueCompressor(
+        conf.getInt(KV_COMPRESSION_THRESHOLD, KV_DEFAULT_COMPRESSION_THRESHOLD));
+
+    watchQueueSize = conf.getInt(KV_WATCH_QUEUE_SIZE, KV_DEFAULT_WATCH_QUEUE_SIZE);
+    String overflowPolicy = conf.get(KV_WATCH_OVERFLOW_POLICY, "coalesce");
+    if (!overflowPolicy.equals("coalesce") && !overflowPolicy.equals("cancel")) {
+      LOG.warn("Unknown {} '{}', expected 'coalesce' or 'cancel'. Using 'coalesce'.",
+               KV_WATCH_OVERFLOW_POLICY, overflowPolicy);
+    }
+    watchOverflowCoalesce = !overflowPolicy.equals("cancel");
+    watchHistory = new WatchHistory(
+        conf.getInt(KV_WATCH_HISTORY_SIZE, KV_DEFAULT_WATCH_HISTORY_SIZE),
+        KV_WATCH_HISTORY_BYTES, 0);
+  }
+
   /** Main entrypoint for the ApplicationMaster. **/
   public static void main(String[] args) {
     // Specify the netty native workdir. This is necessary for systems where
@@ -200,6 +350,9 @@ public class ApplicationMaster {
       registerShutdownHook();
 
       startClients();
+      loadKeyValueQuotas();
+      recoverKeyValueStore();
+      startLeaseExpiration();
       startServer();
       startUI();
 
@@ -291,6 +444,614 @@ public class ApplicationMaster {
         true);
   }
 
+  private int getMaxAttempts() {
+    return Math.min(
+        spec.getMaxAttempts(),
+        conf.getInt(YarnConfiguration.RM_AM_MAX_ATTEMPTS,
+                    YarnConfiguration.DEFAULT_RM_AM_MAX_ATTEMPTS)
+    );
+  }
+
+  private void loadKeyValueQuotas() {
+    long heap = Runtime.getRuntime().maxMemory();
+    long defaultMaxBytes = heap == Long.MAX_VALUE ? -1 : Math.max(0, heap / 2 - KV_HISTORY_BYTES);
+    long maxBytes = conf.getLong(KV_MAX_BYTES, defaultMaxBytes);
+    long maxServiceBytes = conf.getLong(KV_MAX_SERVICE_BYTES, -1);
+    keyValueStore.setQuotas(maxBytes, maxServiceBytes);
+    LOG.info("Key-value store quotas [total: {}, per-service: {}]",
+             maxBytes < 0 ? "unlimited" : Utils.formatBytes(maxBytes),
+             maxServiceBytes < 0 ? "unlimited" : Utils.formatBytes(maxServiceBytes));
+  }
+
+  private void recoverKeyValueStore() throws IOException {
+    if (getMaxAttempts() <= 1) {
+      // No later attempts to persist the key-value store for
+      return;
+    }
+    keyValueLog = KeyValueLog.open(fs, new Path(appDir, "kv"), keyValueStore,
+                                   KV_LOG_MIN_SNAPSHOT_BYTES);
+
+    KeyValueStore.Snapshot recovered = keyValueStore.snapshot();
+    if (recovered.isEmpty()) {
+      return;
+    }
+    // Containers and leases from previous attempts are gone, drop any keys
+    // attached to them
+    int dropped = 0;
+    long revision;
+    synchronized (keyValueStore) {
+      for (Msg.KeyValue kv : recovered.all()) {
+        if (kv.hasOwner() || kv.getLease() != 0) {
+          keyValueStore.remove(kv.getKey());
+          dropped += 1;
+        }
+      }
+      revision = keyValueStore.commit();
+      // Events before now can't be replayed
+      watchHistory.reset(revision);
+    }
+    keyValueLog.sync(revision);
+    LOG.info("Recovered key-value store from previous attempt, dropped {} "
+             + "keys owned by previous containers or leases", dropped);
+  }
+
+  // Queue DELETE events for a list of deleted values sorted by key. The
+  // interval tree is queried once for the whole batch, and each watcher gets
+  // the subset of keys in its interval. Must hold the keyValueStore lock.
+  private void notifyDeleted(final List<Msg.KeyValue> deleted, final WatchEvents events) {
+    if (deleted.isEmpty()) {
+      return;
+    }
+    long revision = keyValueStore.snapshot().getRevision() + 1;
+    List<String> keys = new ArrayList<String>(deleted.size());
+    for (Msg.KeyValue prev : deleted) {
+      watchHistory.addDelete(revision, prev);
+      keys.add(prev.getKey());
+    }
+    // Deletes only include the key, built once for all watchers
+    final Msg.KeyValue[] keyOnly = new Msg.KeyValue[deleted.size()];
+    intervalTree.queryKeys(keys, new IntervalTree.KeysVisitor<Watcher>() {
+      public void visit(IntervalTree.Item<Watcher> item, int start, int end) {
+        if (item.getValue().isDeleteType()) {
+          for (int i = start; i < end; i++) {
+            if (keyOnly[i] == null) {
+              keyOnly[i] = Msg.KeyValue.newBuilder().setKey(deleted.get(i).getKey()).build();
+            }
+            events.add(item, Msg.WatchResponse.Type.DELETE, keyOnly[i], deleted.get(i));
+          }
+        }
+      }
+    });
+  }
+
+  private int compareOwner(Msg.ContainerInstance lhs,
+                           Msg.ContainerInstance rhs) {
+    int out = lhs.getServiceName().compareTo(rhs.getServiceName());
+    return out != 0 ? out : Integer.compare(lhs.getInstance(), rhs.getInstance());
+  }
+
+  private int compareValue(ByteString lhs, ByteString rhs) {
+    return lhs.asReadOnlyByteBuffer().compareTo(rhs.asReadOnlyByteBuffer());
+  }
+
+  // Evaluate a condition against a value, or null for a missing key
+  private boolean evalCondition(Msg.Condition cond, Msg.KeyValue kv) {
+    ByteString rhsValue = null;
+    Msg.ContainerInstance rhsOwner = null;
+
+    ByteString lhsValue = null;
+    Msg.ContainerInstance lhsOwner = null;
+    if (kv != null) {
+      lhsValue = valueCompressor.getValue(kv);
+      if (kv.hasOwner()) {
+        lhsOwner = kv.getOwner();
+      }
+    }
+
+    Msg.Condition.Operator op = cond.getOperator();
+
+    switch (cond.getRhsCase()) {
+      case VALUE:
+        rhsValue = cond.getValue();
+        break;
+      case OWNER:
+        rhsOwner = cond.getOwner();
+        break;
+      case RHS_NOT_SET:
+        break;
+    }
+
+    int compare = 0;
+
+    switch (cond.getField()) {
+      case VALUE:
+        if (lhsValue == null || rhsValue == null) {
+          // only check equality if null, all other comparisons are false
+          switch (op) {
+            case EQUAL:
+              return lhsValue == rhsValue;
+            case NOT_EQUAL:
+              return lhsValue != rhsValue;
+            default:
+              return false;
+          }
+        }
+        compare = compareValue(lhsValue, rhsValue);
+        break;
+      case OWNER:
+        if (lhsOwner == null || rhsOwner == null) {
+          // only check equality if null, all other comparisons are false
+          switch (op) {
+            case EQUAL:
+              return lhsOwner == rhsOwner;
+            case NOT_EQUAL:
+              return lhsOwner != rhsOwner;
+            default:
+              return false;
+          }
+        }
+        compare = compareOwner(lhsOwner, rhsOwner);
+        break;
+    }
+
+    switch (op) {
+      case EQUAL:
+        return compare == 0;
+      case NOT_EQUAL:
+        return compare != 0;
+      case LESS:
+        return compare < 0;
+      case LESS_EQUAL:
+        return compare <= 0;
+      case GREATER:
+        return compare > 0;
+      case GREATER_EQUAL:
+        return compare >= 0;
+    }
+    return true;  // appease compiler, all cases are covered above
+  }
+
+  private static final class Lease {
+    private final long id;
+    private final long ttl;
+    private final Set<String> keys = new HashSet<String>();
+    private TimerWheel.Timer<Lease> timer;
+
+    Lease(long id, long ttl) {
+      this.id = id;
+      this.ttl = ttl;
+    }
+  }
+
+  private Lease grantLease(long ttl) {
+    synchronized (keyValueStore) {
+      Lease lease = new Lease(nextLeaseId++, ttl);
+      lease.timer = leaseTimers.schedule(lease, System.currentTimeMillis() + ttl);
+      leases.put(lease.id, lease);
+      return lease;
+    }
+  }
+
+  private boolean keepAliveLease(Lease lease) {
+    synchronized (keyValueStore) {
+      if (!lease.timer.isScheduled()) {
+        return false;  // Already expired or revoked
+      }
+      leaseTimers.cancel(lease.timer);
+      lease.timer = leaseTimers.schedule(lease, System.currentTimeMillis() + lease.ttl);
+      return true;
+    }
+  }
+
+  // Remove a lease and all its keys. Must hold the keyValueStore lock.
+  private void removeLease(Lease lease, WatchEvents events) {
+    leaseTimers.cancel(lease.timer);
+    leases.remove(lease.id);
+    List<String> keys = new ArrayList<String>(lease.keys);
+    Collections.sort(keys);
+    List<Msg.KeyValue> removed = new ArrayList<Msg.KeyValue>(keys.size());
+    for (String key : keys) {
+      Msg.KeyValue kv = keyValueStore.remove(key);
+      if (kv == null) {
+        LOG.error("Key '{}' already deleted, but wasn't removed from lease {}",
+                  key, lease.id);
+        continue;
+      }
+      if (kv.hasOwner()) {
+        services.get(kv.getOwner().getServiceName())
+                .removeOwnedKey(kv.getOwner().getInstance(), key);
+      }
+      removed.add(kv);
+    }
+    notifyDeleted(removed, events);
+  }
+
+  // Responses to calls, collected while holding a lock and sent once it's
+  // released, so a slow or departed caller never holds up others waiting on
+  // the lock. Sending a reply may add more, e.g. to hand something a
+  // departed caller can't take to the next one in line.
+  private static final class Replies {
+    private final ArrayDeque<Runnable> pending = new ArrayDeque<Runnable>();
+
+    void add(Runnable reply) {
+      pending.addLast(reply);
+    }
+
+    // Must not hold any locks
+    void send() {
+      Runnable reply;
+      while ((reply = pending.pollFirst()) != null) {
+        reply.run();
+      }
+    }
+  }
+
+  // Queue the response completing a call
+  private static <T> void reply(Replies replies, final StreamObserver<T> resp, final T msg) {
+    replies.add(new Runnable() {
+      public void run() {
+        try {
+          resp.onNext(msg);
+          resp.onCompleted();
+        } catch (StatusRuntimeException exc) {
+          // Caller is gone, nothing to do
+        }
+      }
+    });
+  }
+
+  // Queue an error completing a call
+  private static void replyError(Replies replies, final StreamObserver<?> resp,
+                                 final Throwable error) {
+    replies.add(new Runnable() {
+      public void run() {
+        resp.onError(error);
+      }
+    });
+  }
+
+  // A permit from a semaphore, either held or waited for
+  private static final class Permit {
+    private final long token;
+    private final String name;
+    private final Msg.ContainerInstance owner;
+    // The pending Acquire call, null once the permit is granted
+    private StreamObserver<Msg.AcquireResponse> resp;
+
+    Permit(long token, String name, Msg.ContainerInstance owner,
+           StreamObserver<Msg.AcquireResponse> resp) {
+      this.token = token;
+      this.name = name;
+      this.owner = owner;
+      this.resp = resp;
+    }
+  }
+
+  private static final class Barrier {
+    private final int parties;
+    private final Set<StreamObserver<Msg.Empty>> waiting =
+        new LinkedHashSet<StreamObserver<Msg.Empty>>();
+
+    Barrier(int parties) {
+      this.parties = parties;
+    }
+  }
+
+  // Respond to a pending Acquire call once its permit is granted. If the
+  // caller is gone by the time the reply is sent, the permit is released
+  // again. Must hold the keyValueStore lock.
+  private void notifyAcquired(final Permit permit, final Replies replies) {
+    final StreamObserver<Msg.AcquireResponse> resp = permit.resp;
+    permit.resp = null;
+    replies.add(new Runnable() {
+      public void run() {
+        try {
+          resp.onNext(Msg.AcquireResponse
+                         .newBuilder()
+                         .setAcquired(true)
+                         .setToken(permit.token)
+                         .build());
+          resp.onCompleted();
+        } catch (StatusRuntimeException exc) {
+          synchronized (keyValueStore) {
+            if (permits.get(permit.token) == permit) {
+              releasePermit(permit, replies);
+            }
+          }
+        }
+      }
+    });
+  }
+
+  // Release a permit (or stop waiting for one), handing it to the next
+  // waiter. Must hold the keyValueStore lock.
+  private void releasePermit(Permit permit, Replies replies) {
+    permits.remove(permit.token);
+    if (permit.owner != null) {
+      services.get(permit.owner.getServiceName())
+              .removeOwnedPermit(permit.owner.getInstance(), permit.token);
+    }
+    Permit next = semaphores.release(permit.name, permit);
+    if (next != null) {
+      notifyAcquired(next, replies);
+    }
+  }
+
+  private static final class WorkQueue {
+    private final ArrayDeque<Msg.QueueItem> items = new ArrayDeque<Msg.QueueItem>();
+    // Pending QueuePop calls, in arrival order. Only non-empty if `items` is empty.
+    private final Set<Popper> waiting = new LinkedHashSet<Popper>();
+  }
+
+  // A pending QueuePop call
+  private static final class Popper {
+    private final String queue;
+    private final Msg.ContainerInstance owner;
+    private final StreamObserver<Msg.QueuePopResponse> resp;
+    private TimerWheel.Timer<Popper> timer;
+
+    Popper(String queue, Msg.ContainerInstance owner,
+           StreamObserver<Msg.QueuePopResponse> resp) {
+      this.queue = queue;
+      this.owner = owner;
+      this.resp = resp;
+    }
+  }
+
+  // A popped item awaiting acknowledgement
+  private static final class Delivery {
+    private final String queue;
+    private final Msg.QueueItem item;
+    private final Msg.ContainerInstance owner;
+
+    Delivery(String queue, Msg.QueueItem item, Msg.ContainerInstance owner) {
+      this.queue = queue;
+      this.item = item;
+      this.owner = owner;
+    }
+  }
+
+  private WorkQueue getOrCreateQueue(String name) {
+    WorkQueue queue = queues.get(name);
+    if (queue == null) {
+      queue = new WorkQueue();
+      queues.put(name, queue);
+    }
+    return queue;
+  }
+
+  private void maybeRemoveQueue(String name, WorkQueue queue) {
+    if (queue.items.isEmpty() && queue.waiting.isEmpty()) {
+      queues.remove(name);
+    }
+  }
+
+  // Send a popped item to a caller, tracking it until acknowledged if the
+  // caller has an owner. Returns false if the caller's owner has completed,
+  // and the item wasn't taken. The item is sent once the lock is released; if
+  // the caller is gone by then, it's returned to the front of its queue.
+  // Must hold the keyValueStore lock.
+  private boolean sendQueueItem(final Popper popper, final Msg.QueueItem item,
+                                final Replies replies) {
+    final Delivery delivery;
+    if (popper.owner != null) {
+      if (!services.get(popper.owner.getServiceName())
+                   .addOwnedQueueItem(popper.owner.getInstance(), item.getId())) {
+        replyError(replies, popper.resp, Status.ABORTED
+            .withDescription("Container " + popper.owner.getServiceName() + "_"
+                             + popper.owner.getInstance() + " completed")
+            .asRuntimeException());
+        return false;
+      }
+      delivery = new Delivery(popper.queue, item, popper.owner);
+      unacked.put(item.getId(), delivery);
+    } else {
+      delivery = null;
+    }
+    replies.add(new Runnable() {
+      public void run() {
+        try {
+          popper.resp.onNext(Msg.QueuePopResponse
+                                .newBuilder()
+                                .setFound(true)
+                                .setItem(item)
+                                .build());
+          popper.resp.onCompleted();
+        } catch (StatusRuntimeException exc) {
+          synchronized (keyValueStore) {
+            if (delivery == null) {
+              WorkQueue queue = getOrCreateQueue(popper.queue);
+              queue.items.addFirst(item);
+              deliverQueueItems(popper.queue, queue, replies);
+            } else if (unacked.get(item.getId()) == delivery) {
+              // Not already returned by the owner completing
+              requeue(delivery, replies);
+            }
+          }
+        }
+      }
+    });
+    return true;
+  }
+
+  // Hand queued items to waiting callers, in order. Must hold the
+  // keyValueStore lock.
+  private void deliverQueueItems(String name, WorkQueue queue, Replies replies) {
+    Iterator<Popper> waiting = queue.waiting.iterator();
+    while (!queue.items.isEmpty() && waiting.hasNext()) {
+      Popper popper = waiting.next();
+      waiting.remove();
+      if (popper.timer != null) {
+        popTimeouts.cancel(popper.timer);
+      }
+      Msg.QueueItem item = queue.items.pollFirst();
+      if (!sendQueueItem(popper, item, replies)) {
+        queue.items.addFirst(item);
+      }
+    }
+    maybeRemoveQueue(name, queue);
+  }
+
+  // Return an unacknowledged item to the front of its queue. Must hold the
+  // keyValueStore lock.
+  private void requeue(Delivery delivery, Replies replies) {
+    unacked.remove(delivery.item.getId());
+    services.get(delivery.owner.getServiceName())
+            .removeOwnedQueueItem(delivery.owner.getInstance(), delivery.item.getId());
+    WorkQueue queue = getOrCreateQueue(delivery.queue);
+    queue.items.addFirst(delivery.item);
+    deliverQueueItems(delivery.queue, queue, replies);
+  }
+
+  private static final class EventStream {
+    private final StreamLog log = new StreamLog(STREAM_CHUNK_SIZE);
+    // Pending StreamRead calls waiting for new records
+    private final Set<StreamReader> waiting = new LinkedHashSet<StreamReader>();
+  }
+
+  // A pending StreamRead call
+  private static final class StreamReader {
+    private final EventStream stream;
+    private final Msg.StreamReadRequest req;
+    private final StreamObserver<Msg.StreamReadResponse> resp;
+    private TimerWheel.Timer<StreamReader> timer;
+
+    StreamReader(EventStream stream, Msg.StreamReadRequest req,
+                 StreamObserver<Msg.StreamReadResponse> resp) {
+      this.stream = stream;
+      this.req = req;
+      this.resp = resp;
+    }
+  }
+
+  // Read the records requested by a StreamRead call. Must hold the streams
+  // lock.
+  private Msg.StreamReadResponse.Builder readStream(StreamLog log, Msg.StreamReadRequest req) {
+    long start = Math.max(req.getOffset(), log.getFirstOffset());
+    List<ByteString> records = log.read(
+        start, req.getLimit() > 0 ? req.getLimit() : STREAM_READ_DEFAULT_LIMIT,
+        STREAM_READ_MAX_BYTES);
+    return Msg.StreamReadResponse
+              .newBuilder()
+              .setFirstOffset(log.getFirstOffset())
+              .setNextOffset(records.isEmpty() ? req.getOffset() : start + records.size())
+              .addAllValue(records);
+  }
+
+  private EventStream getOrCreateStream(String name) {
+    EventStream stream = streams.get(name);
+    if (stream == null) {
+      stream = new EventStream();
+      stream.log.setRetention(-1, STREAM_DEFAULT_MAX_BYTES);
+      streams.put(name, stream);
+    }
+    return stream;
+  }
+
+  // Respond to any waiting readers that now have records to read. Must hold
+  // the streams lock.
+  private void notifyStreamReaders(EventStream stream, Replies replies) {
+    Iterator<StreamReader> iter = stream.waiting.iterator();
+    while (iter.hasNext()) {
+      StreamReader reader = iter.next();
+      Msg.StreamReadResponse.Builder builder = readStream(stream.log, reader.req);
+      if (builder.getValueCount() == 0) {
+        continue;
+      }
+      iter.remove();
+      if (reader.timer != null) {
+        streamReadTimeouts.cancel(reader.timer);
+      }
+      reply(replies, reader.resp, builder.build());
+    }
+  }
+
+  private void expireCalls(long now) {
+    Replies replies = new Replies();
+    synchronized (keyValueStore) {
+      for (Popper popper : popTimeouts.advance(now)) {
+        WorkQueue queue = queues.get(popper.queue);
+        if (queue != null && queue.waiting.remove(popper)) {
+          maybeRemoveQueue(popper.queue, queue);
+          reply(replies, popper.resp,
+                Msg.QueuePopResponse.newBuilder().setFound(false).build());
+        }
+      }
+    }
+    // Expired reads get whatever records are available
+    synchronized (streams) {
+      for (StreamReader reader : streamReadTimeouts.advance(now)) {
+        if (reader.stream.waiting.remove(reader)) {
+          reply(replies, reader.resp, readStream(reader.stream.log, reader.req).build());
+        }
+      }
+    }
+    replies.send();
+  }
+
+  // Detach a key from its lease (if any). Must hold the keyValueStore lock.
+  private void detachLease(Msg.KeyValue kv) {
+    if (kv.getLease() != 0) {
+      Lease lease = leases.get(kv.getLease());
+      if (lease != null) {
+        lease.keys.remove(kv.getKey());
+      }
+    }
+  }
+
+  private void expireLeases(long now) {
+    long revision;
+    synchronized (keyValueStore) {
+      List<Lease> expired = leaseTimers.advance(now);
+      if (expired.isEmpty()) {
+        return;
+      }
+      // All keys expiring this tick are sent as a single message per watcher
+      WatchEvents events = new WatchEvents();
+      int count = 0;
+      for (Lease lease : expired) {
+        count += lease.keys.size();
+        removeLease(lease, events);
+      }
+      revision = keyValueStore.commit();
+      events.flush();
+      LOG.debug("Expired {} leases with {} keys", expired.size(), count);
+    }
+    syncKeyValueLog(revision);
+  }
+
+  private void startLeaseExpiration() {
+    leaseThread =
+      new Thread("lease-expiration") {
+        public void run() {
+          while (true) {
+            try {
+              Thread.sleep(LEASE_TICK_MS);
+              long now = System.currentTimeMillis();
+              expireLeases(now);
+              expireCalls(now);
+            } catch (InterruptedException exc) {
+              break;
+            } catch (Exception exc) {
+              shutdown(FinalApplicationStatus.FAILED,
+                       "Failure in lease expiration",
+                       exc,
+                       EXIT_MASTER_FAILURE);
+              break;
+            }
+          }
+        }
+      };
+    leaseThread.setDaemon(true);
+    leaseThread.start();
+  }
+
+  private void syncKeyValueLog(long revision) {
+    if (keyValueLog != null) {
+      keyValueLog.sync(revision);
+    }
+  }
+
   private void startServer() throws IOException {
     // Setup and start the server
     SslContext sslContext = GrpcSslContexts
@@ -309,7 +1070,7 @@ public class ApplicationMaster {
 
     grpcServer = NettyServerBuilder.forPort(0)
         .sslContext(sslContext)
-        .addService(new AppMasterImpl())
+        .addService(bindAppMaster())
         .workerEventLoopGroup(eg)
         .bossEventLoopGroup(eg)
         .executor(executor)
@@ -319,6 +1080,31 @@ public class ApplicationMaster {
     LOG.info("gRPC server started at {}:{}", hostname, grpcServer.getPort());
   }
 
+  // The AppMaster service, with watch responses sent through a marshaller
+  // that encodes events shared by many watchers only once.
+  @SuppressWarnings("unchecked")
+  private ServerServiceDefinition bindAppMaster() {
+    ServerServiceDefinition service = new AppMasterImpl().bindService();
+    String watchName = AppMasterGrpc.getWatchMethod().getFullMethodName();
+    ServerServiceDefinition.Builder builder =
+        ServerServiceDefinition.builder(service.getServiceDescriptor().getName());
+    for (ServerMethodDefinition<?, ?> method : service.getMethods()) {
+      if (!method.getMethodDescriptor().getFullMethodName().equals(watchName)) {
+        builder.addMethod(method);
+      }
+    }
+    ServerMethodDefinition<Msg.WatchRequest, Msg.WatchResponse> watch =
+        (ServerMethodDefinition<Msg.WatchRequest, Msg.WatchResponse>) service.getMethod(watchName);
+    builder.addMethod(
+        AppMasterGrpc.getWatchMethod()
+            .toBuilder()
+            .setResponseMarshaller(new WatchResponseMarshaller(
+                WATCH_ENCODED_CACHE_SLOTS, WATCH_ENCODED_MAX_EVENT_SIZE))
+            .build(),
+        watch.getServerCallHandler());
+    return builder.build();
+  }
+
   private void stopServer() {
     if (grpcServer != null) {
       grpcServer.shutdown();
@@ -366,7 +1152,7 @@ public class ApplicationMaster {
     ui = new WebUI(0, appId.toString(), spec.getName(), userName,
                     amLogAddress, hasDriver, progress, totalMemory,
                     totalVcores, startTimeMillis, keyValueStore,
-                    serviceContexts, allowedUsers, conf, false);
+                    valueCompressor, watchQueueStats, serviceContexts, allowedUsers, conf, false);
 
     ui.start();
 
@@ -488,11 +1274,7 @@ public class ApplicationMaster {
   }
 
   private void runOnExit() {
-    int maxAttempts = Math.min(
-        spec.getMaxAttempts(),
-        conf.getInt(YarnConfiguration.RM_AM_MAX_ATTEMPTS,
-                    YarnConfiguration.DEFAULT_RM_AM_MAX_ATTEMPTS)
-    );
+    int maxAttempts = getMaxAttempts();
     int currentAttempt = containerId.getApplicationAttemptId().getAttemptId();
 
     synchronized (shutdownLock) {
@@ -509,6 +1291,13 @@ public class ApplicationMaster {
         exitCode = EXIT_MASTER_FAILURE;
         LOG.warn(finalMessage);
       }
+      if (keyValueLog != null) {
+        try {
+          keyValueLog.close();
+        } catch (IOException exc) {
+          LOG.warn("Failed to close key-value store log", exc);
+        }
+      }
       if (finalStatus == FinalApplicationStatus.SUCCEEDED || currentAttempt >= maxAttempts) {
         // Unregister the application
         if (appRegistered) {
@@ -683,6 +1472,21 @@ public class ApplicationMaster {
   private void handleCompleted(List<ContainerStatus> containerStatuses) {
     LOG.debug("Received {} completed containers", containerStatuses.size());
 
+    // Watchers get a single message for all keys owned by completed containers
+    Replies replies = new Replies();
+    long revision;
+    synchronized (keyValueStore) {
+      WatchEvents events = new WatchEvents();
+      handleCompleted(containerStatuses, events, replies);
+      revision = keyValueStore.commit();
+      events.flush();
+    }
+    syncKeyValueLog(revision);
+    replies.send();
+  }
+
+  private void handleCompleted(List<ContainerStatus> containerStatuses, WatchEvents events,
+                               Replies replies) {
     for (ContainerStatus status : containerStatuses) {
       Model.Container container = containers.get(status.getContainerId());
       if (container == null) {
@@ -726,7 +1530,7 @@ public class ApplicationMaster {
       }
 
       services.get(container.getServiceName())
-              .finishContainer(container.getInstance(), state, exitMessage);
+              .finishContainer(container.getInstance(), state, exitMessage, events, replies);
     }
   }
 
@@ -777,24 +1581,53 @@ public class ApplicationMaster {
     }
   }
 
+  // A Watch call. Responses are queued in a bounded outbox by writers (with
+  // the keyValueStore lock held) and sent from the watch executor as the
+  // client is ready for them, so a slow client never blocks writers or
+  // buffers without limit. See `overflow` for what happens when it's full.
   private final class WatchRequestStream implements StreamObserver<Msg.WatchRequest> {
-    private StreamObserver<Msg.WatchResponse> resp;
+    private final ServerCallStreamObserver<Msg.WatchResponse> resp;
+    // Guarded by the keyValueStore lock
     private final Set<Integer> registered = new HashSet<Integer>();
 
+    // Guarded by `this`
+    private final ArrayDeque<Msg.WatchResponse> outbox = new ArrayDeque<Msg.WatchResponse>();
+    // Pending batches, for watches with a batching window
+    private final Map<Integer, WatchBatch> batches = new HashMap<Integer, WatchBatch>();
+    // Unsent initial snapshots. Each has a SNAPSHOT placeholder in the outbox,
+    // which is replaced by chunks of the snapshot as it's sent.
+    private final Map<Integer, WatchSnapshot> snapshots = new HashMap<Integer, WatchSnapshot>();
+    private int queuedEvents = 0;
+    private boolean draining = false;
+    private boolean completing = false;
+    private boolean closed = false;
+
+    private final Runnable drainTask = new Runnable() {
+      public void run() {
+        drain();
+      }
+    };
+
     WatchRequestStream(StreamObserver<Msg.WatchResponse> resp) {
       super();
-      this.resp = resp;
+      this.resp = (ServerCallStreamObserver<Msg.WatchResponse>) resp;
+      this.resp.setOnReadyHandler(new Runnable() {
+        public void run() {
+          scheduleDrain();
+        }
+      });
       LOG.debug("New watch stream created [stream: {}]",
                 System.identityHashCode(this));
     }
 
     private void removeWatch(int watchId) {
-      if (registered.remove(watchId)) {
-        synchronized (keyValueStore) {
+      synchronized (keyValueStore) {
+        if (registered.remove(watchId)) {
           intervalTree.remove(watchId);
+          discardPending(watchId);
+          LOG.debug("Removed watcher [stream: {}, watcher: {}]",
+                    System.identityHashCode(this), watchId);
         }
-        LOG.debug("Removed watcher [stream: {}, watcher: {}]",
-                  System.identityHashCode(this), watchId);
       }
     }
 
@@ -803,6 +1636,7 @@ public class ApplicationMaster {
         for (Iterator<Integer> it = registered.iterator(); it.hasNext();) {
           int watchId = it.next();
           intervalTree.remove(watchId);
+          discardPending(watchId);
           LOG.debug("Removed watcher [stream: {}, watcher: {}]",
                     System.identityHashCode(this), watchId);
           it.remove();
@@ -810,35 +1644,378 @@ public class ApplicationMaster {
       }
     }
 
-    private boolean isActive() { return registered.size() > 0; }
-
-    @Override
-    public void onNext(Msg.WatchRequest req) {
-      Msg.WatchResponse.Builder builder = Msg.WatchResponse.newBuilder();
-      int watchId;
-      switch (req.getRequestCase()) {
-        case CREATE:
-          Msg.WatchCreateRequest create = req.getCreate();
-          String start = create.getStart();
-          String end = create.getEnd();
-          Msg.WatchCreateRequest.Type type = create.getEventType();
-          synchronized (keyValueStore) {
-            watchId = intervalTree.add(start, end, new Watcher(resp, this, type));
-          }
-          LOG.debug("Created watcher [stream: {}, watcher: {}, start: '{}', end: '{}', type: {}]",
-                    System.identityHashCode(this), watchId, start, end, type);
-          registered.add(watchId);
-          builder.setWatchId(watchId);
-          builder.setType(Msg.WatchResponse.Type.CREATE);
-          break;
-        case CANCEL:
-          watchId = req.getCancel().getWatchId();
-          removeWatch(watchId);
-          builder.setWatchId(watchId);
-          builder.setType(Msg.WatchResponse.Type.CANCEL);
-          break;
-      }
-      resp.onNext(builder.build());
+    // Whether a response has events for a watch that's been removed. A
+    // watch may be canceled for lagging while a write is still adding events
+    // for it, which must not be sent after its CANCEL. Must hold the
+    // keyValueStore lock.
+    private boolean isStale(Msg.WatchResponse msg) {
+      return (msg.getType() == Msg.WatchResponse.Type.PUT
+              || msg.getType() == Msg.WatchResponse.Type.DELETE)
+             && !registered.contains(msg.getWatchId());
+    }
+
+    // Queue a response to be sent. Must hold the keyValueStore lock, so
+    // responses are queued in the same order as the writes they describe.
+    public synchronized void enqueue(Msg.WatchResponse msg) {
+      if (closed || completing || isStale(msg)) {
+        return;
+      }
+      outbox.addLast(msg);
+      queuedEvents += msg.getEventCount();
+      watchQueueStats.add(msg.getEventCount());
+      if (queuedEvents > watchQueueSize) {
+        overflow();
+      }
+      scheduleDrain();
+    }
+
+    // Add events for a watch to its current batch, starting a new batch (and
+    // batching window) if needed. Must hold the keyValueStore lock.
+    public synchronized void addToBatch(Watcher watcher, Msg.WatchResponse msg) {
+      if (closed || completing || isStale(msg)) {
+        return;
+      }
+      final int watchId = msg.getWatchId();
+      WatchBatch batch = batches.get(watchId);
+      if (batch == null) {
+        batch = new WatchBatch(watcher.coalesce);
+        batches.put(watchId, batch);
+        final WatchBatch scheduled = batch;
+        batch.timer = watchBatchTimer.schedule(new Runnable() {
+          public void run() {
+            // Lock in the same order as writers
+            synchronized (keyValueStore) {
+              synchronized (WatchRequestStream.this) {
+                if (batches.get(watchId) == scheduled) {
+                  flushBatch(watchId);
+                }
+              }
+            }
+          }
+        }, watcher.batchWindow, TimeUnit.MILLISECONDS);
+      }
+      batch.add(msg);
+      if (batch.count >= watcher.batchSize) {
+        flushBatch(watchId);
+      }
+    }
+
+    // Must hold the keyValueStore lock and `this`
+    private void flushBatch(int watchId) {
+      WatchBatch batch = batches.remove(watchId);
+      batch.timer.cancel(false);
+      for (Msg.WatchResponse msg : batch.build(watchId)) {
+        enqueue(msg);
+      }
+    }
+
+    private synchronized void discardPending(int watchId) {
+      WatchBatch batch = batches.remove(watchId);
+      if (batch != null) {
+        batch.timer.cancel(false);
+      }
+      snapshots.remove(watchId);
+    }
+
+    // Queue missed events for a resumed watch, merging runs of same-typed
+    // events into one response. Must hold the keyValueStore lock.
+    private void replay(int watchId, Watcher watcher, List<WatchHistory.Event> missed) {
+      Msg.WatchResponse.Builder run = null;
+      for (WatchHistory.Event event : missed) {
+        if (event.isDelete() ? !watcher.isDeleteType() : !watcher.isPutType()) {
+          continue;
+        }
+        if (!watcher.matches(event.isDelete() ? event.getPrevious() : event.getKeyValue())) {
+          continue;
+        }
+        Msg.WatchResponse.Type type = event.isDelete() ? Msg.WatchResponse.Type.DELETE
+                                                       : Msg.WatchResponse.Type.PUT;
+        if (run != null
+            && (run.getType() != type || run.getEventCount() >= WATCH_SNAPSHOT_CHUNK_SIZE)) {
+          enqueue(run.build());
+          run = null;
+        }
+        if (run == null) {
+          run = Msg.WatchResponse.newBuilder().setWatchId(watchId).setType(type);
+        }
+        run.addEvent(valueCompressor.forClient(event.getKeyValue(),
+                                               watcher.acceptsCompressed()));
+      }
+      if (run != null) {
+        enqueue(run.build());
+      }
+    }
+
+    // Queue the initial snapshot for a new watch, which is sent lazily in
+    // chunks. Must hold the keyValueStore lock.
+    private synchronized void addSnapshot(int watchId, KeyValueStore.Snapshot snapshot,
+                                          Msg.WatchCreateRequest create, Watcher watcher) {
+      if (closed || completing) {
+        return;
+      }
+      String start = create.getStart();
+      String end = create.getEnd();
+      Iterator<Msg.KeyValue> iter = snapshot.range(start.isEmpty() ? null : start,
+                                                   end.isEmpty() ? null : end).iterator();
+      snapshots.put(watchId, new WatchSnapshot(iter, watcher));
+      outbox.addLast(Msg.WatchResponse
+                        .newBuilder()
+                        .setWatchId(watchId)
+                        .setType(Msg.WatchResponse.Type.SNAPSHOT)
+                        .build());
+      scheduleDrain();
+    }
+
+    private synchronized void scheduleDrain() {
+      if (!draining && !closed) {
+        draining = true;
+        watchExecutor.execute(drainTask);
+      }
+    }
+
+    // Send queued responses until the outbox is empty or the client isn't
+    // ready. Only one drain runs at a time, and messages are sent without
+    // holding the lock so writers never wait on serialization.
+    private void drain() {
+      while (true) {
+        Msg.WatchResponse msg;
+        WatchSnapshot snapshot = null;
+        synchronized (this) {
+          if (closed || outbox.isEmpty() || !resp.isReady()) {
+            draining = false;
+            if (completing && outbox.isEmpty() && !closed) {
+              closed = true;
+              resp.onCompleted();
+            }
+            return;
+          }
+          msg = outbox.pollFirst();
+          if (msg.getType() == Msg.WatchResponse.Type.SNAPSHOT) {
+            snapshot = snapshots.get(msg.getWatchId());
+            if (snapshot == null) {
+              // The watch was canceled
+              continue;
+            }
+          }
+          queuedEvents -= msg.getEventCount();
+          watchQueueStats.remove(msg.getEventCount());
+        }
+        if (snapshot != null) {
+          // Only one drain runs at a time, so the snapshot can be read
+          // without the lock. The placeholder goes back on the front of the
+          // outbox until the whole snapshot is sent.
+          Msg.WatchResponse placeholder = msg;
+          msg = snapshot.nextChunk(msg.getWatchId());
+          synchronized (this) {
+            if (msg.getSnapshotComplete()) {
+              snapshots.remove(msg.getWatchId());
+            } else if (snapshots.get(msg.getWatchId()) == snapshot) {
+              outbox.addFirst(placeholder);
+            }
+          }
+        }
+        try {
+          resp.onNext(msg);
+        } catch (StatusRuntimeException exc) {
+          if (exc.getStatus().getCode() != Status.Code.CANCELLED) {
+            LOG.warn("Watch stream {} failed to send, got status {}",
+                     System.identityHashCode(this), exc.getStatus());
+          }
+          close();
+          removeAllWatches();
+          return;
+        }
+      }
+    }
+
+    private synchronized void close() {
+      for (WatchBatch batch : batches.values()) {
+        batch.timer.cancel(false);
+      }
+      batches.clear();
+      snapshots.clear();
+      closed = true;
+      draining = false;
+      watchQueueStats.remove(queuedEvents);
+      queuedEvents = 0;
+      outbox.clear();
+    }
+
+    // Handle a full outbox. With the coalesce policy, queued events are
+    // merged to the latest event per key for each watch. If that's not
+    // enough (or with the cancel policy), watches with the most queued events
+    // are canceled until the outbox fits. Must hold the keyValueStore lock.
+    private void overflow() {
+      if (watchOverflowCoalesce) {
+        coalesce();
+        watchQueueStats.recordCoalesced();
+      }
+      while (queuedEvents > watchQueueSize) {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        int lagging = -1;
+        int most = 0;
+        for (Msg.WatchResponse msg : outbox) {
+          Integer count = counts.get(msg.getWatchId());
+          count = (count == null ? 0 : count) + msg.getEventCount();
+          counts.put(msg.getWatchId(), count);
+          if (count > most) {
+            most = count;
+            lagging = msg.getWatchId();
+          }
+        }
+        for (Iterator<Msg.WatchResponse> it = outbox.iterator(); it.hasNext();) {
+          Msg.WatchResponse msg = it.next();
+          if (msg.getWatchId() == lagging && msg.getEventCount() > 0) {
+            queuedEvents -= msg.getEventCount();
+            watchQueueStats.remove(msg.getEventCount());
+            it.remove();
+          }
+        }
+        removeWatch(lagging);
+        outbox.addLast(Msg.WatchResponse
+                          .newBuilder()
+                          .setWatchId(lagging)
+                          .setType(Msg.WatchResponse.Type.CANCEL)
+                          .setCancelReason("Watch fell too far behind, more than "
+                                           + watchQueueSize + " events were queued")
+                          .build());
+        watchQueueStats.recordCanceled();
+        LOG.warn("Canceled lagging watcher [stream: {}, watcher: {}]",
+                 System.identityHashCode(this), lagging);
+      }
+    }
+
+    private void coalesce() {
+      ArrayDeque<Msg.WatchResponse> out = new ArrayDeque<Msg.WatchResponse>();
+      // The latest event per key for each watch, since the last create or
+      // cancel response (which are kept in order).
+      Map<Integer, Map<String, Msg.KeyValue>> puts =
+          new LinkedHashMap<Integer, Map<String, Msg.KeyValue>>();
+      Map<Integer, Map<String, Msg.KeyValue>> deletes =
+          new LinkedHashMap<Integer, Map<String, Msg.KeyValue>>();
+      for (Msg.WatchResponse msg : outbox) {
+        switch (msg.getType()) {
+          case PUT:
+          case DELETE:
+            Map<String, Msg.KeyValue> latest = getOrCreate(
+                msg.getType() == Msg.WatchResponse.Type.PUT ? puts : deletes,
+                msg.getWatchId());
+            Map<String, Msg.KeyValue> other = getOrCreate(
+                msg.getType() == Msg.WatchResponse.Type.PUT ? deletes : puts,
+                msg.getWatchId());
+            for (Msg.KeyValue kv : msg.getEventList()) {
+              other.remove(kv.getKey());
+              latest.remove(kv.getKey());
+              latest.put(kv.getKey(), kv);
+            }
+            break;
+          default:
+            flushCoalesced(puts, deletes, out);
+            out.addLast(msg);
+            break;
+        }
+      }
+      flushCoalesced(puts, deletes, out);
+      int count = 0;
+      for (Msg.WatchResponse msg : out) {
+        count += msg.getEventCount();
+      }
+      watchQueueStats.remove(queuedEvents - count);
+      queuedEvents = count;
+      outbox.clear();
+      outbox.addAll(out);
+    }
+
+    private Map<String, Msg.KeyValue> getOrCreate(
+        Map<Integer, Map<String, Msg.KeyValue>> events, int watchId) {
+      Map<String, Msg.KeyValue> out = events.get(watchId);
+      if (out == null) {
+        out = new LinkedHashMap<String, Msg.KeyValue>();
+        events.put(watchId, out);
+      }
+      return out;
+    }
+
+    private void flushCoalesced(Map<Integer, Map<String, Msg.KeyValue>> puts,
+                                Map<Integer, Map<String, Msg.KeyValue>> deletes,
+                                ArrayDeque<Msg.WatchResponse> out) {
+      for (Map.Entry<Integer, Map<String, Msg.KeyValue>> entry : puts.entrySet()) {
+        addCoalesced(entry.getKey(), Msg.WatchResponse.Type.PUT, entry.getValue(), out);
+        addCoalesced(entry.getKey(), Msg.WatchResponse.Type.DELETE,
+                     deletes.get(entry.getKey()), out);
+      }
+      puts.clear();
+      deletes.clear();
+    }
+
+    private void addCoalesced(int watchId, Msg.WatchResponse.Type type,
+                              Map<String, Msg.KeyValue> events,
+                              ArrayDeque<Msg.WatchResponse> out) {
+      if (!events.isEmpty()) {
+        out.addLast(Msg.WatchResponse
+                       .newBuilder()
+                       .setWatchId(watchId)
+                       .setType(type)
+                       .addAllEvent(events.values())
+                       .build());
+      }
+    }
+
+    @Override
+    public void onNext(Msg.WatchRequest req) {
+      Msg.WatchResponse.Builder builder = Msg.WatchResponse.newBuilder();
+      int watchId;
+      switch (req.getRequestCase()) {
+        case CREATE:
+          Msg.WatchCreateRequest create = req.getCreate();
+          String start = create.getStart();
+          String end = create.getEnd();
+          Msg.WatchCreateRequest.Type type = create.getEventType();
+          synchronized (keyValueStore) {
+            KeyValueStore.Snapshot snapshot = keyValueStore.uncommittedSnapshot();
+            Watcher watcher = new Watcher(this, create);
+            watchId = intervalTree.add(start, end, watcher);
+            registered.add(watchId);
+            // Queued before any events for the new watch
+            enqueue(builder.setWatchId(watchId)
+                           .setType(Msg.WatchResponse.Type.CREATE)
+                           .setRevision(snapshot.getRevision())
+                           .build());
+            if (create.getStartRevision() > 0) {
+              List<WatchHistory.Event> missed =
+                  watchHistory.read(create.getStartRevision(), start, end);
+              if (missed == null) {
+                removeWatch(watchId);
+                enqueue(Msg.WatchResponse
+                           .newBuilder()
+                           .setWatchId(watchId)
+                           .setType(Msg.WatchResponse.Type.CANCEL)
+                           .setCancelReason("Revision " + create.getStartRevision()
+                                            + " has been compacted")
+                           .setCompactRevision(watchHistory.getCompactedRevision())
+                           .build());
+              } else {
+                replay(watchId, watcher, missed);
+              }
+            } else if (create.getInitialSnapshot()) {
+              addSnapshot(watchId, snapshot, create, watcher);
+            }
+          }
+          LOG.debug("Created watcher [stream: {}, watcher: {}, start: '{}', end: '{}', type: {}]",
+                    System.identityHashCode(this), watchId, start, end, type);
+          break;
+        case CANCEL:
+          watchId = req.getCancel().getWatchId();
+          synchronized (keyValueStore) {
+            removeWatch(watchId);
+            enqueue(builder.setWatchId(watchId)
+                           .setType(Msg.WatchResponse.Type.CANCEL)
+                           .build());
+          }
+          break;
+        default:
+          break;
+      }
     }
 
     @Override
@@ -846,29 +2023,54 @@ public class ApplicationMaster {
       LOG.debug("Watch stream canceled [stream: {}]",
                 System.identityHashCode(this));
       removeAllWatches();
+      close();
     }
 
     @Override
     public void onCompleted() {
       LOG.debug("Watch stream completed [stream: {}]",
                 System.identityHashCode(this));
+      // Send any partial batches before completing
+      synchronized (keyValueStore) {
+        synchronized (this) {
+          for (int watchId : new ArrayList<Integer>(batches.keySet())) {
+            flushBatch(watchId);
+          }
+        }
+      }
       removeAllWatches();
-      resp.onCompleted();
+      // Finish sending anything already queued first
+      synchronized (this) {
+        completing = true;
+        if (!draining && !closed) {
+          draining = true;
+          watchExecutor.execute(drainTask);
+        }
+      }
     }
   }
 
   private final class Watcher {
-    private StreamObserver<Msg.WatchResponse> resp;
     private WatchRequestStream req;
     private boolean put;
     private boolean delete;
+    private boolean acceptCompressed;
+    private long batchWindow;
+    private int batchSize;
+    private boolean coalesce;
+    private List<Msg.Condition> filters;
 
-    Watcher(StreamObserver<Msg.WatchResponse> resp,
-            WatchRequestStream req,
-            Msg.WatchCreateRequest.Type type) {
-      this.resp = resp;
+    Watcher(WatchRequestStream req, Msg.WatchCreateRequest create) {
       this.req = req;
-      switch (type) {
+      this.filters = create.getFiltersList();
+      this.acceptCompressed = create.getAcceptCompressed();
+      this.batchWindow = Math.min(create.getBatchWindow(), WATCH_MAX_BATCH_WINDOW);
+      // A batch never holds more events than the watch queue would
+      this.batchSize = Math.min(create.getBatchSize() > 0 ? create.getBatchSize()
+                                                           : WATCH_DEFAULT_BATCH_SIZE,
+                                watchQueueSize);
+      this.coalesce = create.getCoalesce();
+      switch (create.getEventType()) {
         case PUT:
           put = true;
           delete = false;
@@ -886,20 +2088,308 @@ public class ApplicationMaster {
 
     public boolean isPutType() { return put; }
     public boolean isDeleteType() { return delete; }
+    public boolean acceptsCompressed() { return acceptCompressed; }
+
+    // Whether an event passes all filters. Deletes are evaluated against the
+    // deleted value.
+    public boolean matches(Msg.KeyValue kv) {
+      for (Msg.Condition filter : filters) {
+        if (!evalCondition(filter, kv)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Must hold the keyValueStore lock
+    public void sendMsg(Msg.WatchResponse msg) {
+      if (req.isStale(msg)) {
+        return;
+      }
+      if (batchWindow > 0) {
+        req.addToBatch(this, msg);
+      } else {
+        req.enqueue(msg);
+      }
+    }
+  }
+
+  // The remaining keys of a watch's initial snapshot, sent in chunks as the
+  // client keeps up.
+  private final class WatchSnapshot {
+    private final Iterator<Msg.KeyValue> iter;
+    private final Watcher watcher;
+
+    WatchSnapshot(Iterator<Msg.KeyValue> iter, Watcher watcher) {
+      this.iter = iter;
+      this.watcher = watcher;
+    }
+
+    // The next SNAPSHOT response. The last one is marked as complete.
+    Msg.WatchResponse nextChunk(int watchId) {
+      Msg.WatchResponse.Builder builder = Msg.WatchResponse
+          .newBuilder()
+          .setWatchId(watchId)
+          .setType(Msg.WatchResponse.Type.SNAPSHOT);
+      long bytes = 0;
+      while (iter.hasNext()
+             && builder.getEventCount() < WATCH_SNAPSHOT_CHUNK_SIZE
+             && bytes < WATCH_SNAPSHOT_CHUNK_BYTES) {
+        Msg.KeyValue kv = iter.next();
+        if (!watcher.matches(kv)) {
+          continue;
+        }
+        kv = valueCompressor.forClient(kv, watcher.acceptsCompressed());
+        bytes += kv.getSerializedSize();
+        builder.addEvent(kv);
+      }
+      return builder.setSnapshotComplete(!iter.hasNext()).build();
+    }
+  }
+
+  // Events for a watch with a batching window, held until the window closes
+  // or the batch is full. Runs of same-typed events are merged into a single
+  // response, or with coalescing only the latest event per key is kept.
+  private static final class WatchBatch {
+    private final List<Msg.WatchResponse.Builder> runs =
+        new ArrayList<Msg.WatchResponse.Builder>();
+    private final Map<String, Msg.KeyValue> puts = new LinkedHashMap<String, Msg.KeyValue>();
+    private final Map<String, Msg.KeyValue> deletes = new LinkedHashMap<String, Msg.KeyValue>();
+    private final boolean coalesce;
+    private int count = 0;
+    private ScheduledFuture<?> timer;
+
+    WatchBatch(boolean coalesce) {
+      this.coalesce = coalesce;
+    }
+
+    void add(Msg.WatchResponse msg) {
+      if (coalesce) {
+        Map<String, Msg.KeyValue> latest =
+            msg.getType() == Msg.WatchResponse.Type.PUT ? puts : deletes;
+        Map<String, Msg.KeyValue> other =
+            msg.getType() == Msg.WatchResponse.Type.PUT ? deletes : puts;
+        for (Msg.KeyValue kv : msg.getEventList()) {
+          other.remove(kv.getKey());
+          latest.remove(kv.getKey());
+          latest.put(kv.getKey(), kv);
+        }
+        count = puts.size() + deletes.size();
+      } else {
+        Msg.WatchResponse.Builder last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+        if (last != null && last.getType() == msg.getType()) {
+          last.addAllEvent(msg.getEventList());
+        } else {
+          runs.add(msg.toBuilder());
+        }
+        count += msg.getEventCount();
+      }
+    }
+
+    List<Msg.WatchResponse> build(int watchId) {
+      List<Msg.WatchResponse> out = new ArrayList<Msg.WatchResponse>();
+      if (coalesce) {
+        // Each key is in only one of these, so their order doesn't matter
+        if (!puts.isEmpty()) {
+          out.add(Msg.WatchResponse.newBuilder().setWatchId(watchId)
+                     .setType(Msg.WatchResponse.Type.PUT).addAllEvent(puts.values()).build());
+        }
+        if (!deletes.isEmpty()) {
+          out.add(Msg.WatchResponse.newBuilder().setWatchId(watchId)
+                     .setType(Msg.WatchResponse.Type.DELETE).addAllEvent(deletes.values())
+                     .build());
+        }
+      } else {
+        for (Msg.WatchResponse.Builder run : runs) {
+          out.add(run.build());
+        }
+      }
+      return out;
+    }
+  }
+
+  // Accumulates watch events from a series of writes, so each watcher is sent
+  // one message per run of same-typed events instead of one per key. Events
+  // are buffered until `flush` is called, which must happen before the
+  // keyValueStore lock is released to preserve ordering between writes.
+  private final class WatchEvents {
+    private final Map<Integer, Msg.WatchResponse.Builder> pending =
+        new LinkedHashMap<Integer, Msg.WatchResponse.Builder>();
+    private final Map<Integer, Watcher> watchers = new HashMap<Integer, Watcher>();
+    // The last compressed event and its decompressed form, so an event is
+    // only decompressed once for all watchers that need it.
+    private Msg.KeyValue lastCompressed;
+    private Msg.KeyValue lastDecompressed;
+
+    // Add an event if it passes the watcher's filters, which are evaluated
+    // against `value`. For deletes that's the deleted value, while the event
+    // only has the key.
+    public void add(IntervalTree.Item<Watcher> item, Msg.WatchResponse.Type type,
+                    Msg.KeyValue event, Msg.KeyValue value) {
+      if (!item.getValue().matches(value)) {
+        return;
+      }
+      if (event.getCompressed() && !item.getValue().acceptsCompressed()) {
+        if (event != lastCompressed) {
+          lastCompressed = event;
+          lastDecompressed = valueCompressor.decompress(event);
+        }
+        event = lastDecompressed;
+      }
+      int watchId = item.getId();
+      Msg.WatchResponse.Builder builder = pending.get(watchId);
+      if (builder != null && builder.getType() != type) {
+        // Send earlier events before starting a message of a different type
+        item.getValue().sendMsg(builder.build());
+        builder = null;
+      }
+      if (builder == null) {
+        builder = Msg.WatchResponse.newBuilder().setWatchId(watchId).setType(type);
+        pending.put(watchId, builder);
+        watchers.put(watchId, item.getValue());
+      }
+      builder.addEvent(event);
+    }
+
+    public void flush() {
+      for (Map.Entry<Integer, Msg.WatchResponse.Builder> entry : pending.entrySet()) {
+        watchers.get(entry.getKey()).sendMsg(entry.getValue().build());
+      }
+      pending.clear();
+      watchers.clear();
+      lastCompressed = null;
+      lastDecompressed = null;
+    }
+  }
 
-    public void sendMsg(int watchId, Msg.WatchResponse msg) {
-      if (req.isActive()) {
+  // A Subscribe call. Published messages are queued in a bounded outbox and
+  // sent as the client is ready for them, so a slow subscriber only loses
+  // its own oldest messages and never blocks publishers.
+  private final class SubscribeRequestStream
+      implements StreamObserver<Msg.SubscribeRequest>, Runnable {
+    private final ServerCallStreamObserver<Msg.SubscribeResponse> resp;
+    // Guarded by `topics`
+    private final Set<String> subscribed = new HashSet<String>();
+    // Guarded by `this`
+    private final ArrayDeque<Msg.SubscribeResponse> outbox =
+        new ArrayDeque<Msg.SubscribeResponse>();
+    private long dropped = 0;
+    private boolean closed = false;
+
+    SubscribeRequestStream(StreamObserver<Msg.SubscribeResponse> resp) {
+      this.resp = (ServerCallStreamObserver<Msg.SubscribeResponse>) resp;
+      this.resp.setOnReadyHandler(this);
+      this.resp.setOnCancelHandler(new Runnable() {
+        public void run() {
+          close(false);
+        }
+      });
+    }
+
+    public synchronized void offer(Msg.SubscribeResponse msg) {
+      if (closed) {
+        return;
+      }
+      if (outbox.size() == SUBSCRIBER_BUFFER_SIZE) {
+        outbox.pollFirst();
+        dropped++;
+      }
+      outbox.addLast(msg);
+      run();
+    }
+
+    @Override
+    public synchronized void run() {
+      while (!closed && !outbox.isEmpty() && resp.isReady()) {
+        Msg.SubscribeResponse msg = outbox.pollFirst();
+        if (dropped > 0) {
+          msg = msg.toBuilder().setDropped(dropped).build();
+          dropped = 0;
+        }
         try {
           resp.onNext(msg);
         } catch (StatusRuntimeException exc) {
-          if (exc.getStatus().getCode() != Status.Code.CANCELLED) {
-            LOG.warn("Watcher {} failed to send, got status {}",
-                     watchId, exc.getStatus());
+          close(false);
+        }
+      }
+    }
+
+    @Override
+    public void onNext(Msg.SubscribeRequest req) {
+      synchronized (topics) {
+        switch (req.getRequestCase()) {
+          case SUBSCRIBE:
+            if (subscribed.add(req.getSubscribe())) {
+              Set<SubscribeRequestStream> subscribers = topics.get(req.getSubscribe());
+              if (subscribers == null) {
+                subscribers = new HashSet<SubscribeRequestStream>();
+                topics.put(req.getSubscribe(), subscribers);
+              }
+              subscribers.add(this);
+            }
+            break;
+          case UNSUBSCRIBE:
+            if (subscribed.remove(req.getUnsubscribe())) {
+              removeSubscriber(req.getUnsubscribe());
+            }
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    // Must hold the `topics` lock
+    private void removeSubscriber(String topic) {
+      Set<SubscribeRequestStream> subscribers = topics.get(topic);
+      subscribers.remove(this);
+      if (subscribers.isEmpty()) {
+        topics.remove(topic);
+      }
+    }
+
+    private void close(boolean complete) {
+      synchronized (topics) {
+        for (String topic : subscribed) {
+          removeSubscriber(topic);
+        }
+        subscribed.clear();
+      }
+      synchronized (this) {
+        if (!closed) {
+          closed = true;
+          outbox.clear();
+          if (complete) {
+            resp.onCompleted();
           }
-          req.removeAllWatches();
         }
       }
     }
+
+    @Override
+    public void onError(Throwable t) {
+      close(false);
+    }
+
+    @Override
+    public void onCompleted() {
+      close(true);
+    }
+  }
+
+  // Captures the error reported by a precheck, for operations that fail
+  // individually rather than failing the whole request.
+  private static final class OpError implements StreamObserver<Object> {
+    private Status status;
+
+    @Override
+    public void onNext(Object value) { }
+
+    @Override
+    public void onError(Throwable t) { status = Status.fromThrowable(t); }
+
+    @Override
+    public void onCompleted() { }
   }
 
   final class ServiceTracker {
@@ -995,6 +2485,38 @@ public class ApplicationMaster {
       container.removeOwnedKey(key);
     }
 
+    public synchronized boolean addOwnedPermit(int instance, long token) {
+      Model.Container container = getContainer(instance);
+      assert container != null;  // pre-checked before calling
+      if (!container.completed()) {
+        container.addOwnedPermit(token);
+        return true;
+      }
+      return false;
+    }
+
+    public synchronized void removeOwnedPermit(int instance, long token) {
+      Model.Container container = getContainer(instance);
+      assert container != null;  // should never get here.
+      container.removeOwnedPermit(token);
+    }
+
+    public synchronized boolean addOwnedQueueItem(int instance, long id) {
+      Model.Container container = getContainer(instance);
+      assert container != null;  // pre-checked before calling
+      if (!container.completed()) {
+        container.addOwnedQueueItem(id);
+        return true;
+      }
+      return false;
+    }
+
+    public synchronized void removeOwnedQueueItem(int instance, long id) {
+      Model.Container container = getContainer(instance);
+      assert container != null;  // should never get here.
+      container.removeOwnedQueueItem(id);
+    }
+
     public void initialize() throws IOException {
       LOG.info("Initializing service '{}'.", name);
       // Request initial containers
@@ -1046,10 +2568,13 @@ public class ApplicationMaster {
 
     public List<Model.Container> scale(int instances) {
       List<Model.Container> out =  new ArrayList<Model.Container>();
+      long revision;
 
       // Any function that may remove containers needs to lock the kv store
       // outside the tracker to prevent deadlocks.
+      Replies replies = new Replies();
       synchronized (keyValueStore) {
+        WatchEvents events = new WatchEvents();
         synchronized (this) {
           int active = getNumActive();
           int delta = instances - active;
@@ -1073,12 +2598,17 @@ public class ApplicationMaster {
                 instance = Utils.popfirst(running);
               }
               finishContainer(instance, Model.Container.State.KILLED,
-                              "Killed by user request.");
+                              "Killed by user request.", events, replies);
               out.add(containers.get(instance));
             }
           }
         }
+        // Watchers get a single message for all keys owned by killed containers
+        revision = keyValueStore.commit();
+        events.flush();
       }
+      syncKeyValueLog(revision);
+      replies.send();
       return out;
     }
 
@@ -1218,6 +2748,24 @@ public class ApplicationMaster {
     }
 
     public void finishContainer(int instance, Model.Container.State state, String exitMessage) {
+      Replies replies = new Replies();
+      long revision;
+      synchronized (keyValueStore) {
+        WatchEvents events = new WatchEvents();
+        finishContainer(instance, state, exitMessage, events, replies);
+        revision = keyValueStore.commit();
+        events.flush();
+      }
+      syncKeyValueLog(revision);
+      replies.send();
+    }
+
+    // Finish a container, queueing watch events for any removed owned keys
+    // and replies to calls affected by returning its permits and queue items.
+    // The caller is responsible for committing the store, flushing events,
+    // and sending the replies once the lock is released.
+    public void finishContainer(int instance, Model.Container.State state, String exitMessage,
+                                WatchEvents events, Replies replies) {
       // Any function that may remove containers, needs to lock the kv store
       // outside the tracker to prevent deadlocks.
       synchronized (keyValueStore) {
@@ -1275,30 +2823,40 @@ public class ApplicationMaster {
           container.setState(state);
           container.setExitMessage(exitMessage);
 
-          // Remove any owned keys from the key-value store
-          for (String key : container.getOwnedKeys()) {
-            Msg.KeyValue.Builder prevKv = keyValueStore.remove(key);
-            // if not removed already, notify watchers
+          // Remove any owned keys from the key-value store as a sorted batch
+          List<String> owned = new ArrayList<String>(container.getOwnedKeys());
+          Collections.sort(owned);
+          List<Msg.KeyValue> removed = new ArrayList<Msg.KeyValue>(owned.size());
+          for (String key : owned) {
+            Msg.KeyValue prevKv = keyValueStore.remove(key);
             if (prevKv != null) {
-              // Message a single delete event with only the key set
-              Msg.WatchResponse.Builder wrBuilder =
-                  Msg.WatchResponse
-                     .newBuilder()
-                     .setType(Msg.WatchResponse.Type.DELETE)
-                     .addEvent(prevKv.clearValue().clearOwner());
-              for (IntervalTree.Item<Watcher> item : intervalTree.query(key)) {
-                if (item.getValue().isDeleteType()) {
-                  int watchId = item.getId();
-                  item.getValue()
-                      .sendMsg(watchId, wrBuilder.setWatchId(watchId).build());
-                }
-              }
+              detachLease(prevKv);
+              removed.add(prevKv);
             } else {
               LOG.error("Key '{}' already deleted, but wasn't removed from "
                         + "owned-keys set of service '{}'", key, name);
             }
           }
           container.clearOwnedKeys();
+          notifyDeleted(removed, events);
+
+          // Release any owned permits, and stop any owned waiters
+          for (long token : new ArrayList<Long>(container.getOwnedPermits())) {
+            Permit permit = permits.get(token);
+            if (permit.resp != null) {
+              replyError(replies, permit.resp, Status.ABORTED
+                  .withDescription("Container " + container.getId() + " completed")
+                  .asRuntimeException());
+            }
+            releasePermit(permit, replies);
+          }
+          container.clearOwnedPermits();
+
+          // Return any unacknowledged work queue items
+          for (long id : new ArrayList<Long>(container.getOwnedQueueItems())) {
+            requeue(unacked.get(id), replies);
+          }
+          container.clearOwnedQueueItems();
 
           if (mayRestart && (service.getMaxRestarts() == -1
               || numRestarted < service.getMaxRestarts())) {
@@ -1473,54 +3031,138 @@ public class ApplicationMaster {
       resp.onCompleted();
     }
 
-    private SortedMap<String, Msg.KeyValue.Builder> selectRange(
-          SortedMap<String, Msg.KeyValue.Builder> map,
-          String start, String end,
-          boolean openStart, boolean openEnd) {
-      if (openStart && openEnd) {
-        return map;
-      } else if (openEnd) {
-        return map.tailMap(start);
-      } else if (openStart) {
-        return map.headMap(end);
-      } else if (start.compareTo(end) <= 0) {
-        return map.subMap(start, end);
+    // A range of keys selected from a snapshot, and the number of keys in it.
+    private final class Selection implements Iterable<Msg.KeyValue> {
+      private final KeyValueStore.Snapshot snapshot;
+      private final String start;
+      private final String end;
+      private final boolean reverse;
+      private final int count;
+
+      Selection(KeyValueStore.Snapshot snapshot, String start, String end,
+                boolean reverse, int count) {
+        this.snapshot = snapshot;
+        this.start = start;
+        this.end = end;
+        this.reverse = reverse;
+        this.count = count;
       }
-      return null;
-    }
 
-    private Msg.GetRangeResponse.Builder evalGetRange(Msg.GetRangeRequest req) {
-      String start = req.getStart();
-      String end = req.getEnd();
+      @Override
+      public Iterator<Msg.KeyValue> iterator() {
+        if (count == 0) {
+          return Collections.<Msg.KeyValue>emptyIterator();
+        }
+        return snapshot.range(start, end, reverse).iterator();
+      }
+    }
 
-      Msg.GetRangeResponse.Builder builder;
+    private Selection selectRange(KeyValueStore.Snapshot snapshot, String start, String end) {
+      return selectRange(snapshot, start, end, "", false, 0);
+    }
 
-      synchronized (keyValueStore) {
-        SortedMap<String, Msg.KeyValue.Builder> selection =
-            selectRange(keyValueStore, start, end,
-                        start.isEmpty() || start.equals("\u0000"),
-                        end.isEmpty());
+    private Selection selectRange(KeyValueStore.Snapshot snapshot,
+                                  String start, String end,
+                                  String resumeKey, boolean reverse, int offset) {
+      String lo = start.isEmpty() || start.equals("\u0000") ? null : start;
+      String hi = end.isEmpty() ? null : end;
+      if (!resumeKey.isEmpty()) {
+        if (reverse) {
+          // Resume from (and including) resumeKey, iterating downwards
+          String resumeEnd = resumeKey + "\u0000";
+          if (hi == null || resumeEnd.compareTo(hi) < 0) {
+            hi = resumeEnd;
+          }
+        } else if (lo == null || resumeKey.compareTo(lo) > 0) {
+          lo = resumeKey;
+        }
+      }
+      // Work in ranks, so counting and skipping `offset` keys are O(log n)
+      int loRank = lo == null ? 0 : snapshot.rank(lo);
+      int hiRank = snapshot.rank(hi);
+      if (offset > 0) {
+        if (reverse) {
+          hiRank = Math.max(loRank, hiRank - offset);
+        } else {
+          loRank = Math.min(hiRank, loRank + offset);
+        }
+      }
+      if (loRank >= hiRank) {
+        return new Selection(snapshot, null, null, reverse, 0);
+      }
+      return new Selection(snapshot,
+                           snapshot.select(loRank).getKey(),
+                           hiRank < snapshot.size() ? snapshot.select(hiRank).getKey() : null,
+                           reverse, hiRank - loRank);
+    }
 
-        builder = Msg.GetRangeResponse
-                     .newBuilder()
-                     .setCount(selection == null ? 0 : selection.size())
-                     .setResultType(req.getResultType());
+    private Selection selectRange(KeyValueStore.Snapshot snapshot, Msg.GetRangeRequest req) {
+      return selectRange(snapshot, req.getStart(), req.getEnd(),
+                         req.getResumeKey(), req.getReverse(), req.getOffset());
+    }
 
-        if (selection != null) {
-          switch (req.getResultType()) {
-            case ITEMS:
-              for (Map.Entry<String, Msg.KeyValue.Builder> entry : selection.entrySet()) {
-                builder.addResult(entry.getValue());
-              }
-              break;
-            case KEYS:
-              for (String key : selection.keySet()) {
-                builder.addResult(Msg.KeyValue.newBuilder().setKey(key));
-              }
-              break;
-            case NONE:
-              break;
+    // Add up to `limit` results to the response.
+    private void addResults(Msg.GetRangeResponse.Builder builder,
+                            Iterator<Msg.KeyValue> selection, int limit,
+                            boolean acceptCompressed) {
+      int count = 0;
+      switch (builder.getResultType()) {
+        case ITEMS:
+          while (count < limit && selection.hasNext()) {
+            builder.addResult(valueCompressor.forClient(selection.next(), acceptCompressed));
+            count++;
           }
+          break;
+        case KEYS:
+          while (count < limit && selection.hasNext()) {
+            builder.addResult(Msg.KeyValue.newBuilder().setKey(selection.next().getKey()));
+            count++;
+          }
+          break;
+        case NONE:
+          break;
+      }
+    }
+
+    // Select the snapshot to read from for a requested revision. If the
+    // revision is unavailable, an error is sent and null is returned.
+    private KeyValueStore.Snapshot selectSnapshot(long revision,
+                                                  KeyValueStore.Snapshot latest,
+                                                  StreamObserver<?> resp) {
+      if (revision <= 0) {
+        return latest;
+      }
+      KeyValueStore.Snapshot out = keyValueStore.snapshot(revision);
+      if (out == null) {
+        long current = keyValueStore.snapshot().getRevision();
+        resp.onError(Status.OUT_OF_RANGE
+            .withDescription(revision > current
+                ? ("Revision " + revision + " is greater than the current "
+                   + "revision " + current)
+                : ("Revision " + revision + " has been compacted, the oldest "
+                   + "available revision is " + keyValueStore.getOldestRevision()))
+            .asRuntimeException());
+      }
+      return out;
+    }
+
+    private Msg.GetRangeResponse.Builder evalGetRange(Msg.GetRangeRequest req,
+                                                      KeyValueStore.Snapshot snapshot) {
+      Selection selection = selectRange(snapshot, req);
+
+      Msg.GetRangeResponse.Builder builder =
+          Msg.GetRangeResponse
+             .newBuilder()
+             .setCount(selection.count)
+             .setResultType(req.getResultType())
+             .setRevision(snapshot.getRevision());
+
+      if (builder.getResultType() != Msg.GetRangeRequest.ResultType.NONE) {
+        PeekingIterator<Msg.KeyValue> iter = Iterators.peekingIterator(selection.iterator());
+        addResults(builder, iter, req.getLimit() > 0 ? req.getLimit() : Integer.MAX_VALUE,
+                   req.getAcceptCompressed());
+        if (iter.hasNext()) {
+          builder.setMore(true).setNextKey(iter.peek().getKey());
         }
       }
       return builder;
@@ -1544,38 +3186,109 @@ public class ApplicationMaster {
     @Override
     public void getRange(Msg.GetRangeRequest req,
         StreamObserver<Msg.GetRangeResponse> resp) {
-      resp.onNext(evalGetRange(req).build());
+      // Reads are served from a committed snapshot without locking
+      KeyValueStore.Snapshot snapshot =
+          selectSnapshot(req.getRevision(), keyValueStore.snapshot(), resp);
+      if (snapshot == null) {
+        return;
+      }
+      resp.onNext(evalGetRange(req, snapshot).build());
       resp.onCompleted();
     }
 
+    @Override
+    public void getRangeStream(Msg.GetRangeRequest req,
+        StreamObserver<Msg.GetRangeResponse> resp) {
+      KeyValueStore.Snapshot snapshot =
+          selectSnapshot(req.getRevision(), keyValueStore.snapshot(), resp);
+      if (snapshot == null) {
+        return;
+      }
+      new RangeStream(req, snapshot, (ServerCallStreamObserver<Msg.GetRangeResponse>) resp);
+    }
+
+    // Streams a range from a snapshot in bounded chunks. Chunks are only
+    // produced while the call is ready, so the amount of buffered data is
+    // proportional to the chunk size rather than the size of the range.
+    private final class RangeStream implements Runnable {
+      private final Msg.GetRangeRequest req;
+      private final long revision;
+      private final int count;
+      private final int chunkSize;
+      private final PeekingIterator<Msg.KeyValue> selection;
+      private final ServerCallStreamObserver<Msg.GetRangeResponse> resp;
+      private boolean done = false;
+
+      RangeStream(Msg.GetRangeRequest req, KeyValueStore.Snapshot snapshot,
+                  ServerCallStreamObserver<Msg.GetRangeResponse> resp) {
+        this.req = req;
+        this.revision = snapshot.getRevision();
+        Selection range = selectRange(snapshot, req);
+        this.count = range.count;
+        this.chunkSize = req.getLimit() > 0 ? req.getLimit() : RANGE_STREAM_CHUNK_SIZE;
+        this.selection = Iterators.peekingIterator(range.iterator());
+        this.resp = resp;
+        resp.setOnCancelHandler(new Runnable() {
+          public void run() {
+            cancel();
+          }
+        });
+        resp.setOnReadyHandler(this);
+        run();
+      }
+
+      private synchronized void cancel() {
+        done = true;
+      }
+
+      @Override
+      public synchronized void run() {
+        while (!done && resp.isReady()) {
+          Msg.GetRangeResponse.Builder builder =
+              Msg.GetRangeResponse
+                 .newBuilder()
+                 .setResultType(req.getResultType())
+                 .setRevision(revision)
+                 .setCount(count);
+          addResults(builder, selection, chunkSize, req.getAcceptCompressed());
+          done = builder.getResultType() == Msg.GetRangeRequest.ResultType.NONE
+                 || !selection.hasNext();
+          if (!done) {
+            builder.setMore(true).setNextKey(selection.peek().getKey());
+          }
+          resp.onNext(builder.build());
+          if (done) {
+            resp.onCompleted();
+          }
+        }
+      }
+    }
+
     private Msg.DeleteRangeResponse.Builder evalDeleteRange(
-        Msg.DeleteRangeRequest req) {
-      String start = req.getStart();
-      String end = req.getEnd();
+        Msg.DeleteRangeRequest req, WatchEvents events) {
 
       Msg.DeleteRangeResponse.Builder builder;
 
       synchronized (keyValueStore) {
-        SortedMap<String, Msg.KeyValue.Builder> selection =
-            selectRange(keyValueStore, start, end,
-                        start.isEmpty() || start.equals("\u0000"),
-                        end.isEmpty());
+        List<Msg.KeyValue> selection = Lists.newArrayList(
+            selectRange(keyValueStore.uncommittedSnapshot(),
+                        req.getStart(), req.getEnd()));
 
         builder = Msg.DeleteRangeResponse
                      .newBuilder()
-                     .setCount(selection == null ? 0 : selection.size())
+                     .setCount(selection.size())
                      .setResultType(req.getResultType());
 
-        if (selection != null && selection.size() > 0) {
+        if (selection.size() > 0) {
           switch (req.getResultType()) {
             case ITEMS:
-              for (Map.Entry<String, Msg.KeyValue.Builder> entry : selection.entrySet()) {
-                builder.addResult(entry.getValue());
+              for (Msg.KeyValue kv : selection) {
+                builder.addResult(valueCompressor.decompress(kv));
               }
               break;
             case KEYS:
-              for (String key : selection.keySet()) {
-                builder.addResult(Msg.KeyValue.newBuilder().setKey(key));
+              for (Msg.KeyValue kv : selection) {
+                builder.addResult(Msg.KeyValue.newBuilder().setKey(kv.getKey()));
               }
               break;
             case NONE:
@@ -1583,44 +3296,18 @@ public class ApplicationMaster {
           }
 
           // Notify watchers, if any
-          String firstKey = selection.firstKey();
-          String lastKey = selection.lastKey();
-          for (IntervalTree.Item<Watcher> item : intervalTree.query(firstKey, lastKey)) {
-            if (item.getValue().isDeleteType()) {
-              int watchId = item.getId();
-              Msg.WatchResponse.Builder wrBuilder =
-                  Msg.WatchResponse
-                     .newBuilder()
-                     .setWatchId(watchId)
-                     .setType(Msg.WatchResponse.Type.DELETE);
-              // Subselect the deleted keys based on the overlapping interval.
-              // We need to floor/ceil the bounds since `subMap` rejects keys
-              // out of the already subselected range
-              String iStart = item.getIntervalBegin();
-              String iEnd = item.getIntervalEnd();
-              SortedMap<String, Msg.KeyValue.Builder> iSelection =
-                  selectRange(selection, iStart, iEnd,
-                              iStart.compareTo(firstKey) <= 0,
-                              iEnd == null || iEnd.compareTo(lastKey) >= 0);
-
-              for (String key : iSelection.keySet()) {
-                wrBuilder.addEvent(Msg.KeyValue.newBuilder().setKey(key));
-              }
-              item.getValue().sendMsg(watchId, wrBuilder.build());
-            }
-          }
+          notifyDeleted(selection, events);
 
           // Do deletion
-          // Clear owners first before deleting
-          for (Map.Entry<String, Msg.KeyValue.Builder> entry : selection.entrySet()) {
-            Msg.KeyValue.Builder value = entry.getValue();
-            if (value.hasOwner()) {
-              services.get(value.getOwner().getServiceName())
-                      .removeOwnedKey(value.getOwner().getInstance(),
-                                      entry.getKey());
+          // Clear owners and leases first before deleting
+          for (Msg.KeyValue kv : selection) {
+            if (kv.hasOwner()) {
+              services.get(kv.getOwner().getServiceName())
+                      .removeOwnedKey(kv.getOwner().getInstance(), kv.getKey());
             }
+            detachLease(kv);
+            keyValueStore.remove(kv.getKey());
           }
-          selection.clear();
         }
       }
       return builder;
@@ -1629,14 +3316,27 @@ public class ApplicationMaster {
     @Override
     public void deleteRange(Msg.DeleteRangeRequest req,
         StreamObserver<Msg.DeleteRangeResponse> resp) {
-      resp.onNext(evalDeleteRange(req).build());
+      Msg.DeleteRangeResponse.Builder builder;
+      long revision;
+      synchronized (keyValueStore) {
+        WatchEvents events = new WatchEvents();
+        builder = evalDeleteRange(req, events);
+        revision = keyValueStore.commit();
+        events.flush();
+      }
+      syncKeyValueLog(revision);
+      resp.onNext(builder.build());
       resp.onCompleted();
     }
 
-    private boolean precheckPutKey(Msg.PutKeyRequest req, StreamObserver<?> resp) {
+    // Validate a put against the store with a request's earlier writes
+    // applied, recording it as a pending write if valid.
+    private boolean precheckPutKey(Msg.PutKeyRequest req, PendingWrites writes,
+                                   StreamObserver<?> resp) {
       synchronized (keyValueStore) {
         boolean ignoreValue = req.getIgnoreValue();
         boolean ignoreOwner = req.getIgnoreOwner();
+        Msg.KeyValue prev = writes.get(req.getKey());
 
         if (ignoreValue && ignoreOwner) {
           // can't ignore both value and owner
@@ -1646,7 +3346,7 @@ public class ApplicationMaster {
           return false;
         }
 
-        if (ignoreValue && keyValueStore.get(req.getKey()) == null) {
+        if (ignoreValue && prev == null) {
           // ignore_value & key doesn't exist
           resp.onError(Status.FAILED_PRECONDITION
               .withDescription("ignore_value=True & key isn't already set")
@@ -1654,6 +3354,13 @@ public class ApplicationMaster {
           return false;
         }
 
+        if (req.getLease() != 0 && !leases.containsKey(req.getLease())) {
+          resp.onError(Status.NOT_FOUND
+              .withDescription("Lease " + req.getLease() + " not found")
+              .asRuntimeException());
+          return false;
+        }
+
         Msg.ContainerInstance owner = req.hasOwner() ? req.getOwner() : null;
 
         if (!ignoreOwner && owner != null) {
@@ -1664,17 +3371,81 @@ public class ApplicationMaster {
             return false;
           }
         }
+
+        // The value as it will be stored, for checking quotas
+        Msg.KeyValue.Builder builder = Msg.KeyValue.newBuilder()
+            .setKey(req.getKey())
+            .setLease(req.getLease());
+        if (ignoreValue) {
+          builder.setValue(prev.getValue()).setCompressed(prev.getCompressed());
+        } else {
+          ByteString value = writes.prepareValue(req.getValue());
+          builder.setValue(value).setCompressed(value != req.getValue());
+        }
+        if (ignoreOwner) {
+          if (prev != null && prev.hasOwner()) {
+            builder.setOwner(prev.getOwner());
+          }
+        } else if (owner != null) {
+          builder.setOwner(owner);
+        }
+        Msg.KeyValue kv = builder.build();
+
+        if (!checkQuotas(kv, prev, writes, resp)) {
+          return false;
+        }
+        writes.put(kv);
+      }
+      return true;
+    }
+
+    // Reject writes that would grow the store past its quotas, counting the
+    // request's earlier writes. Writes that shrink usage are always allowed.
+    private boolean checkQuotas(Msg.KeyValue kv, Msg.KeyValue prev, PendingWrites writes,
+                                StreamObserver<?> resp) {
+      long size = KeyValueStore.estimateBytes(kv);
+      long prevSize = prev == null ? 0 : KeyValueStore.estimateBytes(prev);
+
+      long maxBytes = keyValueStore.getMaxBytes();
+      long used = writes.getBytes();
+      if (maxBytes >= 0 && size > prevSize && used + size - prevSize > maxBytes) {
+        resp.onError(Status.RESOURCE_EXHAUSTED
+            .withDescription("Key-value store is full, " + Utils.formatBytes(used)
+                             + " of " + Utils.formatBytes(maxBytes) + " used")
+            .asRuntimeException());
+        return false;
+      }
+
+      String service = kv.hasOwner() ? kv.getOwner().getServiceName() : null;
+      long maxServiceBytes = keyValueStore.getMaxServiceBytes();
+      if (service != null && maxServiceBytes >= 0) {
+        // Only count the previous value if it's owned by the same service
+        if (prev == null || !prev.hasOwner()
+            || !prev.getOwner().getServiceName().equals(service)) {
+          prevSize = 0;
+        }
+        long serviceUsed = writes.getBytes(service);
+        if (size > prevSize && serviceUsed + size - prevSize > maxServiceBytes) {
+          resp.onError(Status.RESOURCE_EXHAUSTED
+              .withDescription("Service '" + service + "' exceeded its key-value "
+                               + "store quota, " + Utils.formatBytes(serviceUsed)
+                               + " of " + Utils.formatBytes(maxServiceBytes) + " used")
+              .asRuntimeException());
+          return false;
+        }
       }
       return true;
     }
 
-    private Msg.PutKeyResponse.Builder evalPutKey(Msg.PutKeyRequest req) {
+    private Msg.PutKeyResponse.Builder evalPutKey(Msg.PutKeyRequest req,
+                                                  PendingWrites writes,
+                                                  final WatchEvents events) {
       String key = req.getKey();
       boolean ignoreValue = req.getIgnoreValue();
       boolean ignoreOwner = req.getIgnoreOwner();
       boolean returnPrevious = req.getReturnPrevious();
 
-      Msg.KeyValue.Builder prev;
+      Msg.KeyValue prev;
 
       synchronized (keyValueStore) {
         prev = keyValueStore.get(key);
@@ -1684,9 +3455,11 @@ public class ApplicationMaster {
 
         if (ignoreValue) {
           // prev == null was forbidden in precheckPutKey
-          kvBuilder.setValue(prev.getValue());
+          kvBuilder.setValue(prev.getValue()).setCompressed(prev.getCompressed());
         } else {
-          kvBuilder.setValue(req.getValue());
+          // Already compressed, before locking or when prechecked
+          ByteString value = writes.prepareValue(req.getValue());
+          kvBuilder.setValue(value).setCompressed(value != req.getValue());
         }
 
         if (ignoreOwner) {
@@ -1708,28 +3481,33 @@ public class ApplicationMaster {
             kvBuilder.setOwner(owner);
           }
         }
-        keyValueStore.put(key, kvBuilder);
+
+        // Move the key to the new lease (if any)
+        if (prev != null) {
+          detachLease(prev);
+        }
+        if (req.getLease() != 0) {
+          leases.get(req.getLease()).keys.add(key);
+          kvBuilder.setLease(req.getLease());
+        }
+        final Msg.KeyValue kv = keyValueStore.put(kvBuilder);
+        watchHistory.addPut(kv);
 
         // Notify watchers
-        Msg.WatchResponse.Builder wrBuilder =
-            Msg.WatchResponse
-               .newBuilder()
-               .setType(Msg.WatchResponse.Type.PUT)
-               .addEvent(kvBuilder);
-
-        for (IntervalTree.Item<Watcher> item : intervalTree.query(key)) {
-          if (item.getValue().isPutType()) {
-            int watchId = item.getId();
-            item.getValue().sendMsg(watchId, wrBuilder.setWatchId(watchId).build());
+        intervalTree.visit(key, new IntervalTree.Visitor<Watcher>() {
+          public void visit(IntervalTree.Item<Watcher> item) {
+            if (item.getValue().isPutType()) {
+              events.add(item, Msg.WatchResponse.Type.PUT, kv, kv);
+            }
           }
-        }
+        });
       }
 
       Msg.PutKeyResponse.Builder builder =
           Msg.PutKeyResponse.newBuilder().setReturnPrevious(returnPrevious);
 
       if (returnPrevious && prev != null) {
-        builder.setPrevious(prev);
+        builder.setPrevious(valueCompressor.decompress(prev));
       }
 
       return builder;
@@ -1737,103 +3515,91 @@ public class ApplicationMaster {
 
     @Override
     public void putKey(Msg.PutKeyRequest req, StreamObserver<Msg.PutKeyResponse> resp) {
+      Msg.PutKeyResponse.Builder builder;
+      long revision;
+      // Compress outside the lock
+      PendingWrites writes = new PendingWrites(keyValueStore, valueCompressor);
+      if (!req.getIgnoreValue()) {
+        writes.prepareValue(req.getValue());
+      }
       synchronized (keyValueStore) {
-        if (!precheckPutKey(req, resp)) {
+        if (!precheckPutKey(req, writes, resp)) {
           return;
         }
-        resp.onNext(evalPutKey(req).build());
-        resp.onCompleted();
+        WatchEvents events = new WatchEvents();
+        builder = evalPutKey(req, writes, events);
+        revision = keyValueStore.commit();
+        events.flush();
       }
+      syncKeyValueLog(revision);
+      resp.onNext(builder.build());
+      resp.onCompleted();
     }
 
-    private int compareOwner(Msg.ContainerInstance lhs,
-                             Msg.ContainerInstance rhs) {
-      int out = lhs.getServiceName().compareTo(rhs.getServiceName());
-      return out != 0 ? out : Integer.compare(lhs.getInstance(), rhs.getInstance());
+    private boolean evalCondition(Msg.Condition cond, KeyValueStore.Snapshot snapshot) {
+      return ApplicationMaster.this.evalCondition(cond, snapshot.get(cond.getKey()));
     }
 
-    private int compareValue(ByteString lhs, ByteString rhs) {
-      return lhs.asReadOnlyByteBuffer().compareTo(rhs.asReadOnlyByteBuffer());
+    // Validate an operation, recording its writes so later operations in the
+    // same request are checked against them.
+    private boolean precheckOp(Msg.OpRequest op, PendingWrites writes,
+                               StreamObserver<?> resp) {
+      switch (op.getRequestCase()) {
+        case PUT_KEY:
+          return precheckPutKey(op.getPutKey(), writes, resp);
+        case INCREMENT:
+        case APPEND:
+          Msg.PutKeyRequest put = writes.update(op, resp);
+          return put != null && precheckPutKey(put, writes, resp);
+        case GET_RANGE:
+          return selectSnapshot(op.getGetRange().getRevision(),
+                                keyValueStore.snapshot(), resp) != null;
+        case DELETE_RANGE:
+          String start = op.getDeleteRange().getStart();
+          String end = op.getDeleteRange().getEnd();
+          writes.removeRange(start.isEmpty() || start.equals("\u0000") ? null : start,
+                             end.isEmpty() ? null : end);
+          return true;
+        default:
+          return true;
+      }
     }
 
-    private boolean evalCondition(Msg.Condition cond) {
-      synchronized (keyValueStore) {
-        Msg.KeyValue.Builder kv = keyValueStore.get(cond.getKey());
-
-        ByteString rhsValue = null;
-        Msg.ContainerInstance rhsOwner = null;
-
-        ByteString lhsValue = null;
-        Msg.ContainerInstance lhsOwner = null;
-        if (kv != null) {
-          lhsValue = kv.getValue();
-          if (kv.hasOwner()) {
-            lhsOwner = kv.getOwner();
+    // Apply an operation validated by `precheckOp` with the same writes.
+    private Msg.OpResponse.Builder evalOp(Msg.OpRequest op, PendingWrites writes,
+                                          WatchEvents events) {
+      Msg.OpResponse.Builder builder = Msg.OpResponse.newBuilder();
+      switch (op.getRequestCase()) {
+        case PUT_KEY:
+          builder.setPutKey(evalPutKey(op.getPutKey(), writes, events));
+          break;
+        case GET_RANGE:
+          // Reads at the latest revision see earlier writes in the request
+          long revision = op.getGetRange().getRevision();
+          KeyValueStore.Snapshot snapshot = revision > 0
+              ? keyValueStore.snapshot(revision)
+              : keyValueStore.uncommittedSnapshot();
+          builder.setGetRange(evalGetRange(op.getGetRange(), snapshot));
+          break;
+        case DELETE_RANGE:
+          builder.setDeleteRange(evalDeleteRange(op.getDeleteRange(), events));
+          break;
+        case INCREMENT:
+        case APPEND:
+          Msg.PutKeyRequest put = writes.nextUpdate();
+          evalPutKey(put, writes, events);
+          if (op.getRequestCase() == Msg.OpRequest.RequestCase.INCREMENT) {
+            builder.setIncrement(Msg.IncrementResponse.newBuilder()
+                .setValue(Long.parseLong(put.getValue().toStringUtf8())));
+          } else {
+            builder.setAppend(Msg.AppendResponse.newBuilder()
+                .setSize(put.getValue().size()));
           }
-        }
-
-        Msg.Condition.Operator op = cond.getOperator();
-
-        switch (cond.getRhsCase()) {
-          case VALUE:
-            rhsValue = cond.getValue();
-            break;
-          case OWNER:
-            rhsOwner = cond.getOwner();
-            break;
-          case RHS_NOT_SET:
-            break;
-        }
-
-        int compare = 0;
-
-        switch (cond.getField()) {
-          case VALUE:
-            if (lhsValue == null || rhsValue == null) {
-              // only check equality if null, all other comparisons are false
-              switch (op) {
-                case EQUAL:
-                  return lhsValue == rhsValue;
-                case NOT_EQUAL:
-                  return lhsValue != rhsValue;
-                default:
-                  return false;
-              }
-            }
-            compare = compareValue(lhsValue, rhsValue);
-            break;
-          case OWNER:
-            if (lhsOwner == null || rhsOwner == null) {
-              // only check equality if null, all other comparisons are false
-              switch (op) {
-                case EQUAL:
-                  return lhsOwner == rhsOwner;
-                case NOT_EQUAL:
-                  return lhsOwner != rhsOwner;
-                default:
-                  return false;
-              }
-            }
-            compare = compareOwner(lhsOwner, rhsOwner);
-            break;
-        }
-
-        switch (op) {
-          case EQUAL:
-            return compare == 0;
-          case NOT_EQUAL:
-            return compare != 0;
-          case LESS:
-            return compare < 0;
-          case LESS_EQUAL:
-            return compare <= 0;
-          case GREATER:
-            return compare > 0;
-          case GREATER_EQUAL:
-            return compare >= 0;
-        }
-        return true;  // appease compiler, all cases are covered above
+          break;
+        default:
+          break;
       }
+      return builder;
     }
 
     @Override
@@ -1842,12 +3608,18 @@ public class ApplicationMaster {
 
       Msg.TransactionResponse.Builder builder =
           Msg.TransactionResponse.newBuilder();
+      long revision;
+
+      // Compress outside the lock, for whichever branch is taken
+      PendingWrites writes = new PendingWrites(keyValueStore, valueCompressor);
+      writes.prepareValues(req.getOnSuccessList());
+      writes.prepareValues(req.getOnFailureList());
 
       synchronized (keyValueStore) {
         // Evaluate all conditions
         boolean succeeded = true;
         for (Msg.Condition cond : req.getConditionList()) {
-          if (!evalCondition(cond)) {
+          if (!evalCondition(cond, keyValueStore.uncommittedSnapshot())) {
             succeeded = false;
             break;
           }
@@ -1855,50 +3627,503 @@ public class ApplicationMaster {
 
         List<Msg.OpRequest> ops = succeeded ? req.getOnSuccessList() : req.getOnFailureList();
 
-        // Validate all operations before committing any of them
+        // Validate all operations before applying any of them, each against
+        // the writes of those before it
         for (Msg.OpRequest op : ops) {
-          switch (op.getRequestCase()) {
-            case PUT_KEY:
-              if (!precheckPutKey(op.getPutKey(), resp)) {
-                return;
-              }
-              break;
-            default:
-              break;
+          if (!precheckOp(op, writes, resp)) {
+            return;
           }
         }
 
         // Evaluate operations and build response list
+        WatchEvents events = new WatchEvents();
         for (Msg.OpRequest op : ops) {
-          switch (op.getRequestCase()) {
-            case PUT_KEY:
-              builder.addResult(Msg.OpResponse.newBuilder()
-                     .setPutKey(evalPutKey(op.getPutKey())));
-              break;
-            case GET_RANGE:
-              builder.addResult(Msg.OpResponse.newBuilder()
-                     .setGetRange(evalGetRange(op.getGetRange())));
-              break;
-            case DELETE_RANGE:
-              builder.addResult(Msg.OpResponse.newBuilder()
-                     .setDeleteRange(evalDeleteRange(op.getDeleteRange())));
-              break;
-            default:
-              break;
-          }
+          builder.addResult(evalOp(op, writes, events));
         }
         builder.setSucceeded(succeeded);
+        revision = keyValueStore.commit();
+        events.flush();
       }
+      syncKeyValueLog(revision);
 
       resp.onNext(builder.build());
       resp.onCompleted();
     }
 
+    // Apply each operation in order, under a single lock acquisition and
+    // commit. Unlike a transaction, an invalid operation fails on its own
+    // without affecting the others.
+    private Msg.BatchResponse.Builder evalBatch(Msg.BatchRequest req) {
+      Msg.BatchResponse.Builder builder = Msg.BatchResponse.newBuilder();
+      // Compress outside the lock
+      PendingWrites writes = new PendingWrites(keyValueStore, valueCompressor);
+      writes.prepareValues(req.getOpList());
+      synchronized (keyValueStore) {
+        WatchEvents events = new WatchEvents();
+        for (Msg.OpRequest op : req.getOpList()) {
+          // Each operation is applied before the next is checked
+          writes.clear();
+          OpError error = new OpError();
+          if (precheckOp(op, writes, error)) {
+            builder.addResult(Msg.BatchResponse.Result.newBuilder()
+                   .setResponse(evalOp(op, writes, events)));
+          } else {
+            builder.addResult(Msg.BatchResponse.Result.newBuilder()
+                   .setCode(error.status.getCode().value())
+                   .setMessage(Strings.nullToEmpty(error.status.getDescription())));
+          }
+        }
+        builder.setRevision(keyValueStore.commit());
+        events.flush();
+      }
+      return builder;
+    }
+
+    @Override
+    public void batch(Msg.BatchRequest req, StreamObserver<Msg.BatchResponse> resp) {
+      Msg.BatchResponse.Builder builder = evalBatch(req);
+      syncKeyValueLog(builder.getRevision());
+      resp.onNext(builder.build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<Msg.BatchRequest> ingest(
+        final StreamObserver<Msg.IngestResponse> resp) {
+      return new StreamObserver<Msg.BatchRequest>() {
+        private final Msg.IngestResponse.Builder builder = Msg.IngestResponse.newBuilder();
+
+        @Override
+        public void onNext(Msg.BatchRequest req) {
+          Msg.BatchResponse.Builder batch = evalBatch(req);
+          for (Msg.BatchResponse.Result result : batch.getResultList()) {
+            if (result.getCode() == 0) {
+              builder.setSucceeded(builder.getSucceeded() + 1);
+            } else {
+              if (builder.getFailed() == 0) {
+                builder.setError(result.getMessage());
+              }
+              builder.setFailed(builder.getFailed() + 1);
+            }
+          }
+          builder.setRevision(batch.getRevision());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          LOG.debug("Ingest stream canceled after {} operations",
+                    builder.getSucceeded() + builder.getFailed());
+        }
+
+        @Override
+        public void onCompleted() {
+          // Only wait for durability once at the end of the stream
+          syncKeyValueLog(builder.getRevision());
+          resp.onNext(builder.build());
+          resp.onCompleted();
+        }
+      };
+    }
+
+    @Override
+    public void leaseGrant(Msg.LeaseGrantRequest req,
+        StreamObserver<Msg.LeaseGrantResponse> resp) {
+      if (req.getTtl() <= 0) {
+        resp.onError(Status.INVALID_ARGUMENT
+            .withDescription("ttl must be > 0, got " + req.getTtl())
+            .asRuntimeException());
+        return;
+      }
+      Lease lease = grantLease(req.getTtl());
+      resp.onNext(Msg.LeaseGrantResponse
+                     .newBuilder()
+                     .setId(lease.id)
+                     .setTtl(lease.ttl)
+                     .build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public void leaseRevoke(Msg.LeaseRevokeRequest req, StreamObserver<Msg.Empty> resp) {
+      long revision;
+      synchronized (keyValueStore) {
+        Lease lease = leases.get(req.getId());
+        if (lease == null) {
+          resp.onError(Status.NOT_FOUND
+              .withDescription("Lease " + req.getId() + " not found")
+              .asRuntimeException());
+          return;
+        }
+        WatchEvents events = new WatchEvents();
+        removeLease(lease, events);
+        revision = keyValueStore.commit();
+        events.flush();
+      }
+      syncKeyValueLog(revision);
+      resp.onNext(MsgUtils.EMPTY);
+      resp.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<Msg.LeaseKeepAliveRequest> leaseKeepAlive(
+        final StreamObserver<Msg.LeaseKeepAliveResponse> resp) {
+      return new StreamObserver<Msg.LeaseKeepAliveRequest>() {
+        @Override
+        public void onNext(Msg.LeaseKeepAliveRequest req) {
+          Lease lease;
+          synchronized (keyValueStore) {
+            lease = leases.get(req.getId());
+          }
+          // A ttl of 0 indicates the lease has already expired
+          long ttl = lease != null && keepAliveLease(lease) ? lease.ttl : 0;
+          resp.onNext(Msg.LeaseKeepAliveResponse
+                         .newBuilder()
+                         .setId(req.getId())
+                         .setTtl(ttl)
+                         .build());
+        }
+
+        @Override
+        public void onError(Throwable t) { }
+
+        @Override
+        public void onCompleted() {
+          resp.onCompleted();
+        }
+      };
+    }
+
     @Override
     public StreamObserver<Msg.WatchRequest> watch(final StreamObserver<Msg.WatchResponse> resp) {
       return new WatchRequestStream(resp);
     }
 
+    @Override
+    public void acquire(Msg.AcquireRequest req, StreamObserver<Msg.AcquireResponse> resp) {
+      String name = req.getName();
+      if (req.getPermits() < 0) {
+        resp.onError(Status.INVALID_ARGUMENT
+            .withDescription("permits must be non-negative")
+            .asRuntimeException());
+        return;
+      }
+      int numPermits = req.getPermits() == 0 ? 1 : req.getPermits();
+
+      Replies replies = new Replies();
+      synchronized (keyValueStore) {
+        acquirePermit(req, numPermits, resp, replies);
+      }
+      replies.send();
+    }
+
+    // Acquire a permit, or wait for one. Must hold the keyValueStore lock.
+    private void acquirePermit(Msg.AcquireRequest req, int numPermits,
+                               StreamObserver<Msg.AcquireResponse> resp, Replies replies) {
+      String name = req.getName();
+      Msg.ContainerInstance owner = req.hasOwner() ? req.getOwner() : null;
+      OpError error = new OpError();
+      if (owner != null && !checkContainerInstance(owner.getServiceName(),
+                                                   owner.getInstance(),
+                                                   true, error)) {
+        replyError(replies, resp, error.status.asRuntimeException());
+        return;
+      }
+      int current = semaphores.getPermits(name);
+      if (current != 0 && current != numPermits) {
+        replyError(replies, resp, Status.FAILED_PRECONDITION
+            .withDescription("Semaphore '" + name + "' has " + current
+                             + " permits, not " + numPermits)
+            .asRuntimeException());
+        return;
+      }
+
+      final Permit permit = new Permit(nextPermitToken++, name, owner, resp);
+      boolean acquired = req.getTryAcquire()
+          ? semaphores.tryAcquire(name, numPermits, permit)
+          : semaphores.acquire(name, numPermits, permit);
+      if (!acquired && req.getTryAcquire()) {
+        reply(replies, resp, Msg.AcquireResponse.newBuilder().setAcquired(false).build());
+        return;
+      }
+
+      permits.put(permit.token, permit);
+      if (owner != null) {
+        boolean ok = services.get(owner.getServiceName())
+                             .addOwnedPermit(owner.getInstance(), permit.token);
+        assert ok;  // fail if owner -> completed without locking kv store
+      }
+      if (acquired) {
+        notifyAcquired(permit, replies);
+        return;
+      }
+      // Stop waiting if the caller goes away
+      ((ServerCallStreamObserver<Msg.AcquireResponse>) resp).setOnCancelHandler(
+          new Runnable() {
+            public void run() {
+              Replies replies = new Replies();
+              synchronized (keyValueStore) {
+                if (permits.get(permit.token) == permit && permit.resp != null) {
+                  releasePermit(permit, replies);
+                }
+              }
+              replies.send();
+            }
+          });
+    }
+
+    @Override
+    public void release(Msg.ReleaseRequest req, StreamObserver<Msg.Empty> resp) {
+      Replies replies = new Replies();
+      boolean found;
+      synchronized (keyValueStore) {
+        Permit permit = permits.get(req.getToken());
+        found = permit != null && permit.resp == null;
+        if (found) {
+          releasePermit(permit, replies);
+        }
+      }
+      replies.send();
+      if (!found) {
+        resp.onError(Status.NOT_FOUND
+            .withDescription("Permit " + req.getToken() + " not found")
+            .asRuntimeException());
+        return;
+      }
+      resp.onNext(MsgUtils.EMPTY);
+      resp.onCompleted();
+    }
+
+    @Override
+    public void queuePush(Msg.QueuePushRequest req, StreamObserver<Msg.QueuePushResponse> resp) {
+      long id;
+      Replies replies = new Replies();
+      synchronized (keyValueStore) {
+        id = nextQueueItemId++;
+        WorkQueue queue = getOrCreateQueue(req.getQueue());
+        queue.items.addLast(Msg.QueueItem
+                               .newBuilder()
+                               .setId(id)
+                               .setValue(req.getValue())
+                               .build());
+        deliverQueueItems(req.getQueue(), queue, replies);
+      }
+      replies.send();
+      resp.onNext(Msg.QueuePushResponse.newBuilder().setId(id).build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public void queuePop(Msg.QueuePopRequest req, StreamObserver<Msg.QueuePopResponse> resp) {
+      final String name = req.getQueue();
+      Msg.ContainerInstance owner = req.hasOwner() ? req.getOwner() : null;
+
+      Replies replies = new Replies();
+      OpError error = new OpError();
+      synchronized (keyValueStore) {
+        final Popper popper = new Popper(name, owner, resp);
+        WorkQueue queue = queues.get(name);
+        if (owner != null && !checkContainerInstance(owner.getServiceName(),
+                                                     owner.getInstance(),
+                                                     true, error)) {
+          replyError(replies, resp, error.status.asRuntimeException());
+        } else if (queue != null && !queue.items.isEmpty()) {
+          Msg.QueueItem item = queue.items.pollFirst();
+          if (!sendQueueItem(popper, item, replies)) {
+            queue.items.addFirst(item);
+          }
+          maybeRemoveQueue(name, queue);
+        } else if (req.getTimeout() == 0) {
+          reply(replies, resp, Msg.QueuePopResponse.newBuilder().setFound(false).build());
+        } else {
+          // Wait for an item to be pushed
+          getOrCreateQueue(name).waiting.add(popper);
+          if (req.getTimeout() > 0) {
+            popper.timer = popTimeouts.schedule(popper,
+                                                System.currentTimeMillis() + req.getTimeout());
+          }
+          ((ServerCallStreamObserver<Msg.QueuePopResponse>) resp).setOnCancelHandler(
+              new Runnable() {
+                public void run() {
+                  synchronized (keyValueStore) {
+                    WorkQueue queue = queues.get(name);
+                    if (queue != null && queue.waiting.remove(popper)) {
+                      if (popper.timer != null) {
+                        popTimeouts.cancel(popper.timer);
+                      }
+                      maybeRemoveQueue(name, queue);
+                    }
+                  }
+                }
+              });
+        }
+      }
+      replies.send();
+    }
+
+    @Override
+    public void queueAck(Msg.QueueAckRequest req, StreamObserver<Msg.Empty> resp) {
+      Replies replies = new Replies();
+      Delivery delivery;
+      synchronized (keyValueStore) {
+        // An unknown id is rejected once the lock is released
+        delivery = unacked.get(req.getId());
+        if (delivery != null && req.getRequeue()) {
+          requeue(delivery, replies);
+        } else if (delivery != null) {
+          unacked.remove(req.getId());
+          services.get(delivery.owner.getServiceName())
+                  .removeOwnedQueueItem(delivery.owner.getInstance(), req.getId());
+        }
+      }
+      replies.send();
+      if (delivery == null) {
+        resp.onError(Status.NOT_FOUND
+            .withDescription("Unacknowledged queue item " + req.getId() + " not found")
+            .asRuntimeException());
+        return;
+      }
+      resp.onNext(MsgUtils.EMPTY);
+      resp.onCompleted();
+    }
+
+    @Override
+    public void streamAppend(Msg.StreamAppendRequest req,
+                             StreamObserver<Msg.StreamAppendResponse> resp) {
+      long offset;
+      Replies replies = new Replies();
+      synchronized (streams) {
+        EventStream stream = getOrCreateStream(req.getStream());
+        StreamLog log = stream.log;
+        if (req.getMaxRecords() != 0 || req.getMaxBytes() != 0) {
+          log.setRetention(req.getMaxRecords() != 0 ? req.getMaxRecords() : log.getMaxRecords(),
+                           req.getMaxBytes() != 0 ? req.getMaxBytes() : log.getMaxBytes());
+        }
+        offset = log.getNextOffset();
+        for (ByteString value : req.getValueList()) {
+          log.append(value);
+        }
+        notifyStreamReaders(stream, replies);
+      }
+      replies.send();
+      resp.onNext(Msg.StreamAppendResponse.newBuilder().setOffset(offset).build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public void streamRead(Msg.StreamReadRequest req,
+                           StreamObserver<Msg.StreamReadResponse> resp) {
+      Msg.StreamReadResponse.Builder builder;
+      synchronized (streams) {
+        EventStream current = streams.get(req.getStream());
+        builder = current != null
+            ? readStream(current.log, req)
+            : Msg.StreamReadResponse.newBuilder().setNextOffset(req.getOffset());
+        if (builder.getValueCount() == 0 && req.getTimeout() != 0) {
+          // Wait for new records to be appended
+          final EventStream stream = getOrCreateStream(req.getStream());
+          final StreamReader reader = new StreamReader(stream, req, resp);
+          stream.waiting.add(reader);
+          if (req.getTimeout() > 0) {
+            reader.timer = streamReadTimeouts.schedule(
+                reader, System.currentTimeMillis() + req.getTimeout());
+          }
+          ((ServerCallStreamObserver<Msg.StreamReadResponse>) resp).setOnCancelHandler(
+              new Runnable() {
+                public void run() {
+                  synchronized (streams) {
+                    if (stream.waiting.remove(reader) && reader.timer != null) {
+                      streamReadTimeouts.cancel(reader.timer);
+                    }
+                  }
+                }
+              });
+          return;
+        }
+      }
+      resp.onNext(builder.build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public void publish(Msg.PublishRequest req, StreamObserver<Msg.PublishResponse> resp) {
+      List<SubscribeRequestStream> subscribers;
+      synchronized (topics) {
+        Set<SubscribeRequestStream> current = topics.get(req.getTopic());
+        subscribers = current == null
+            ? Collections.<SubscribeRequestStream>emptyList()
+            : new ArrayList<SubscribeRequestStream>(current);
+      }
+      Msg.SubscribeResponse msg = Msg.SubscribeResponse
+                                     .newBuilder()
+                                     .setTopic(req.getTopic())
+                                     .setMessage(req.getMessage())
+                                     .build();
+      for (SubscribeRequestStream subscriber : subscribers) {
+        subscriber.offer(msg);
+      }
+      resp.onNext(Msg.PublishResponse.newBuilder().setSubscribers(subscribers.size()).build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<Msg.SubscribeRequest> subscribe(
+        StreamObserver<Msg.SubscribeResponse> resp) {
+      return new SubscribeRequestStream(resp);
+    }
+
+    @Override
+    public void barrier(Msg.BarrierRequest req, final StreamObserver<Msg.Empty> resp) {
+      final String name = req.getName();
+      int parties = req.getParties();
+      if (parties <= 0) {
+        resp.onError(Status.INVALID_ARGUMENT
+            .withDescription("parties must be positive")
+            .asRuntimeException());
+        return;
+      }
+      Replies replies = new Replies();
+      int existingParties;
+      synchronized (keyValueStore) {
+        Barrier current = barriers.get(name);
+        if (current == null) {
+          current = new Barrier(parties);
+          barriers.put(name, current);
+        }
+        // A mismatch is rejected once the lock is released
+        existingParties = current.parties;
+        if (existingParties == parties) {
+          current.waiting.add(resp);
+          if (current.waiting.size() == parties) {
+            // Everyone has arrived, release them all and reset the barrier
+            barriers.remove(name);
+            for (StreamObserver<Msg.Empty> waiter : current.waiting) {
+              reply(replies, waiter, MsgUtils.EMPTY);
+            }
+          } else {
+            final Barrier barrier = current;
+            ((ServerCallStreamObserver<Msg.Empty>) resp).setOnCancelHandler(
+                new Runnable() {
+                  public void run() {
+                    synchronized (keyValueStore) {
+                      if (barriers.get(name) == barrier && barrier.waiting.remove(resp)
+                          && barrier.waiting.isEmpty()) {
+                        barriers.remove(name);
+                      }
+                    }
+                  }
+                });
+          }
+        }
+      }
+      replies.send();
+      if (existingParties != parties) {
+        resp.onError(Status.FAILED_PRECONDITION
+            .withDescription("Barrier '" + name + "' has " + existingParties
+                             + " parties, not " + parties)
+            .asRuntimeException());
+      }
+    }
+
     @Override
     public void addProxy(Msg.Proxy req, StreamObserver<Msg.Empty> resp) {
       ui.addProxy(req, resp);
@@ -8,6 +8,7 @@
  * - Specialize only for our use case
  * - Remove unnecessary methods
  * - Simplify and cleanup code
+ * - Replace the red-black tree with sorted arrays
  *
  * The original source was copyrighted under the MIT license, (c) 2014 tinloaf.
  * The original license is included in a comment at the end of this file.
@@ -17,23 +18,60 @@ package com.anaconda.skein;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
+/* An index of intervals, supporting queries for all intervals containing a
+ * key or intersecting a range.
+ *
+ * Intervals are kept in arrays sorted by their beginning, with the maximum
+ * end of each implicit subtree (rooted at the midpoint of a subarray) stored
+ * alongside. Queries walk the implicit tree without allocating or chasing
+ * pointers. Since intervals change much less often than they're queried, the
+ * arrays are rebuilt rather than updated in place: new intervals are first
+ * kept in a small unsorted list, and removed intervals are marked until
+ * enough have changed to rebuild. Queries sort any new intervals first, so
+ * the unsorted list scanned per query stays short.
+ */
 public class IntervalTree<T> {
-  private TreeNode<T> root;
-  private Map<Integer, Item<T>> lookup;
+  // Rebuild once the unsorted intervals exceed the larger of this or a
+  // quarter of the sorted ones.
+  private static final int MIN_PENDING = 32;
+  // Queries scan the unsorted intervals, so sort them first once there are
+  // more than a few. Adds usually come in bursts, and queries are far more
+  // frequent.
+  private static final int MAX_QUERY_PENDING = 8;
+
+  private final Map<Integer, Item<T>> lookup = new HashMap<Integer, Item<T>>();
+  // Single key intervals ([key, key + '\0')) are kept out of the arrays and
+  // indexed by key instead, since they're the common case and can be found
+  // with a hash lookup. The sorted key set is only used for range queries.
+  private final Map<String, List<Item<T>>> points = new HashMap<String, List<Item<T>>>();
+  private final TreeSet<String> pointKeys = new TreeSet<String>();
+  // Intervals sorted by beginning, and the maximum end in each subtree
+  private Item<T>[] sorted = newItems(0);
+  private String[] maxEnds = new String[0];
+  private int numRemovedSorted = 0;
+  // Intervals added since the last rebuild
+  private final List<Item<T>> pending = new ArrayList<Item<T>>();
+  // Intervals removed while visiting query results, unlinked after
+  private final List<Item<T>> deferred = new ArrayList<Item<T>>();
+  private int visiting = 0;
   private int currentId = 0;
 
-  private static enum Color {
-    RED, BLACK
-  }
+  private static final Comparator<Item<?>> ORDER = new Comparator<Item<?>>() {
+    public int compare(Item<?> a, Item<?> b) {
+      int out = a.interval.begin.compareTo(b.interval.begin);
+      return out != 0 ? out : nullStringCompare(a.interval.end, b.interval.end);
+    }
+  };
 
-  public IntervalTree() {
-    this.root = null;
-    this.lookup = new HashMap<Integer, Item<T>>();
+  @SuppressWarnings("unchecked")
+  private static <V> Item<V>[] newItems(int size) {
+    return (Item<V>[]) new Item[size];
   }
 
   private int nextId() {
@@ -59,6 +97,14 @@ public class IntervalTree<T> {
     String getBegin() { return begin; }
     String getEnd() { return end; }
 
+    // Whether this interval contains only `begin`
+    boolean isPoint() {
+      return (end != null
+              && end.length() == begin.length() + 1
+              && end.charAt(begin.length()) == '\0'
+              && end.startsWith(begin));
+    }
+
     @Override
     public int hashCode() {
       int hash = begin == null ? 0 : begin.hashCode();
@@ -84,9 +130,10 @@ public class IntervalTree<T> {
 
   public static class Item<V> {
     private Interval interval;
-    private TreeNode<V> treenode;
     private V value;
     private int id;
+    private boolean inSorted = false;
+    private boolean removed = false;
 
     Item(Interval interval, V value, int id) {
       this.interval = interval;
@@ -105,87 +152,15 @@ public class IntervalTree<T> {
     public String getIntervalEnd() { return interval.getEnd(); }
   }
 
-  private static class TreeNode<V> {
-    Interval interval;
-    Color color;
-    TreeNode<V> left;
-    TreeNode<V> right;
-    TreeNode<V> parent;
-    HashSet<Item<V>> items;
-    String max;
-
-    TreeNode(Interval interval, Color nodeColor, TreeNode<V> left, TreeNode<V> right) {
-      this.interval = interval;
-      this.color = nodeColor;
-      this.left = left;
-      this.right = right;
-      this.parent = null;
-      this.items = new HashSet<Item<V>>();
-      updateMax();
-    }
-
-    void updateMax() {
-      max = interval.end;
-
-      if (left != null) {
-        left.parent = this;
-        max = nullStringMax(max, left.max);
-      }
-
-      if (right != null) {
-        right.parent = this;
-        max = nullStringMax(max, right.max);
-      }
-    }
-
-    TreeNode<V> grandparent() {
-      return parent.parent;
-    }
-
-    TreeNode<V> sibling() {
-      return (this == parent.right) ? parent.left : parent.right;
-    }
-
-    TreeNode<V> uncle() {
-      return parent.sibling();
-    }
-
-    private List<Item<V>> query(Interval target, List<Item<V>> out) {
-      boolean eRightOfB = nullStringCompare(interval.begin, target.end) <= 0;
-
-      if (eRightOfB && nullStringCompare(interval.end, target.begin) > 0) {
-        out.addAll(items);
-      }
-
-      if (left != null && nullStringCompare(left.max, target.begin) > 0) {
-        left.query(target, out);
-      }
-
-      if (right != null && eRightOfB) {
-        right.query(target, out);
-      }
-
-      return out;
-    }
-
-    private List<Item<V>> query(String target, List<Item<V>> out) {
-      boolean rightOfB = nullStringCompare(interval.begin, target) <= 0;
-
-      if (rightOfB && nullStringCompare(interval.end, target) > 0) {
-        out.addAll(items);
-      }
-
-      if (left != null && nullStringCompare(left.max, target) > 0) {
-        left.query(target, out);
-      }
-
-      if (right != null && rightOfB) {
-        right.query(target, out);
-      }
-
-      return out;
-    }
+  /** Receives the intervals found by a query. **/
+  public interface Visitor<V> {
+    void visit(Item<V> item);
+  }
 
+  /** Receives the intervals containing keys from a sorted list, along with
+   * the range of indices [start, end) of the keys each one contains. **/
+  public interface KeysVisitor<V> {
+    void visit(Item<V> item, int start, int end);
   }
 
   public static int nullStringCompare(String a, String b) {
@@ -202,338 +177,317 @@ public class IntervalTree<T> {
     return nullStringCompare(a, b) < 0 ? b : a;
   }
 
-  private Color nodeColor(TreeNode<T> n) {
-    return (n == null) ? Color.BLACK : n.color;
-  }
-
-  // Find all intervals containing the target
-  public List<Item<T>> query(String target) {
-    if (root == null) {
-      return Collections.emptyList();
-    }
-    return root.query(target, new ArrayList<Item<T>>(Math.round(size() * 0.5f)));
-  }
-
-  // Find all intervals intersecting with [begin, end] (note inclusive end).
-  public List<Item<T>> query(String begin, String end) {
-    if (root == null) {
-      return Collections.emptyList();
-    }
-    return root.query(new Interval(begin, end),
-                      new ArrayList<Item<T>>(Math.round(size() * 0.5f)));
-  }
-
-  private void replaceNode(TreeNode<T> oldn, TreeNode<T> newn) {
-    if (oldn.parent == null) {
-      root = newn;
-    } else {
-      if (oldn == oldn.parent.left) {
-        oldn.parent.left = newn;
+  // The index of the first key in [lo, hi) that's >= target
+  private static int lowerBound(List<String> keys, String target, int lo, int hi) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keys.get(mid).compareTo(target) < 0) {
+        lo = mid + 1;
       } else {
-        oldn.parent.right = newn;
+        hi = mid;
       }
     }
-    if (newn != null) {
-      newn.parent = oldn.parent;
-    }
-  }
-
-  private void rotateLeft(TreeNode<T> n) {
-    TreeNode<T> r = n.right;
-    replaceNode(n, r);
-    n.right = r.left;
-    if (r.left != null) {
-      r.left.parent = n;
-    }
-    r.left = n;
-    n.parent = r;
-
-    // Update max towards root
-    n.updateMax();
-    r.updateMax();
-    if (r.parent != null) {
-      r.parent.updateMax();
-    }
-  }
-
-  private void rotateRight(TreeNode<T> n) {
-    TreeNode<T> l = n.left;
-    replaceNode(n, l);
-    n.left = l.right;
-    if (l.right != null) {
-      l.right.parent = n;
-    }
-    l.right = n;
-    n.parent = l;
-
-    // Update max towards root
-    n.updateMax();
-    l.updateMax();
-    if (l.parent != null) {
-      l.parent.updateMax();
-    }
+    return lo;
   }
 
   public int add(String begin, String end, T value) {
     Item<T> item = new Item<T>(begin, end, value, nextId());
-    TreeNode<T> newNode = new TreeNode<T>(item.interval, Color.RED, null, null);
     lookup.put(item.id, item);
 
-    if (root == null) {
-      root = newNode;
-    } else {
-      TreeNode<T> n = root;
-      while (true) {
-        int beginComp = nullStringCompare(item.interval.begin, n.interval.begin);
-        n.max = nullStringMax(n.max, item.interval.end);
-
-        if (beginComp == 0) {
-          int endComp = nullStringCompare(item.interval.end, n.interval.end);
-          if (endComp == 0) {
-            // Match with existing interval, just add to set
-            n.items.add(item);
-            item.treenode = n;
-            return item.id;
-          } else {
-            if (endComp > 0) {
-              if (n.right == null) {
-                n.right = newNode;
-                break;
-              } else {
-                n = n.right;
-              }
-            } else {
-              if (n.left == null) {
-                n.left = newNode;
-                break;
-              } else {
-                n = n.left;
-              }
-            }
-          }
-        } else if (beginComp < 0) {
-          if (n.left == null) {
-            n.left = newNode;
-            break;
-          } else {
-            n = n.left;
-          }
-        } else {
-          if (n.right == null) {
-            n.right = newNode;
-            break;
-          } else {
-            n = n.right;
-          }
-        }
+    if (item.interval.isPoint()) {
+      List<Item<T>> items = points.get(item.interval.begin);
+      if (items == null) {
+        items = new ArrayList<Item<T>>(1);
+        points.put(item.interval.begin, items);
+        pointKeys.add(item.interval.begin);
       }
-      newNode.parent = n;
+      items.add(item);
+    } else {
+      pending.add(item);
+      maybeRebuild();
     }
-
-    newNode.items.add(item);
-    item.treenode = newNode;
-    fixTreeAt(newNode);
     return item.id;
   }
 
-  private void fixTreeAt(TreeNode<T> n) {
-    /*
-     * Case 1: We are the root. We are black, everything else is still OK
-     */
-    if (n.parent == null) {
-      n.color = Color.BLACK;
-      return;
-    }
-
-    /*
-     * Case 2: Our parent is black. Two consecutive blacks are allowed, all is
-     * well.
-     */
-    if (nodeColor(n.parent) == Color.BLACK) {
-      return; // Tree is still valid
-    }
+  public boolean remove(int id) {
+    Item<T> item = lookup.remove(id);
 
-    /*
-     * Case 3: We violate red-red, but our uncle is red, too. We switch the
-     * colors of (uncle/parent) and grandparent and restart fixing at our
-     * grandparent.
-     */
-    if (nodeColor(n.uncle()) == Color.RED) {
-      n.parent.color = Color.BLACK;
-      n.uncle().color = Color.BLACK;
-      n.grandparent().color = Color.RED;
-      fixTreeAt(n.grandparent());
-      return;
+    if (item == null) {
+      return false;  // Key not found, do nothing
     }
 
-    /*
-     * Case 4: We violate red-red, and our uncle is black. We need to rotate!
-     */
-
-    /*
-     * Sub-Case 4.1: We are "inside" our grandparents subtree, i.e. we are the
-     * left child and our parent is a right child (or vice versa). We need to
-     * rotate ourselves to the outside (by rotating about our parent) to apply
-     * the fix for case 4.
-     */
-    if (n == n.parent.right && n.parent == n.grandparent().left) {
-      rotateLeft(n.parent);
-      n = n.left;
-    } else if (n == n.parent.left && n.parent == n.grandparent().right) {
-      rotateRight(n.parent);
-      n = n.right;
+    // Queries skip removed items, so unlinking can wait until any in
+    // progress queries are done.
+    item.removed = true;
+    if (visiting > 0) {
+      deferred.add(item);
+    } else {
+      unlink(item);
+      maybeRebuild();
     }
+    return true;
+  }
 
-    /*
-     * Now, finally fix case 4 by rotating about our parent.
-     */
-    n.parent.color = Color.BLACK;
-    n.grandparent().color = Color.RED;
-    if (n == n.parent.left && n.parent == n.grandparent().left) {
-      rotateRight(n.grandparent());
+  private void unlink(Item<T> item) {
+    if (item.interval.isPoint()) {
+      List<Item<T>> items = points.get(item.interval.begin);
+      items.remove(item);
+      if (items.isEmpty()) {
+        points.remove(item.interval.begin);
+        pointKeys.remove(item.interval.begin);
+      }
+    } else if (item.inSorted) {
+      numRemovedSorted++;
     } else {
-      assert n == n.parent.right && n.parent == n.grandparent().right;
-      rotateLeft(n.grandparent());
+      pending.remove(item);
     }
   }
 
-  public boolean remove(int id) {
-    Item<T> item = lookup.remove(id);
-
-    if (item == null) {
-      return false;  // Key not found, do nothing
+  private void maybeRebuild() {
+    if (visiting == 0
+        && (pending.size() > Math.max(MIN_PENDING, sorted.length / 4)
+            || numRemovedSorted > sorted.length / 2)) {
+      rebuild();
     }
+  }
 
-    TreeNode<T> n = item.treenode;
-
-    if (n.items.size() > 1) {
-      // we retain the node since it contains multiple items
-      n.items.remove(item);
-      return true;
+  private void prepareQuery() {
+    if (visiting == 0 && pending.size() > MAX_QUERY_PENDING) {
+      rebuild();
     }
+  }
 
-    if (n.left != null && n.right != null) {
-      // Copy key/value from predecessor and then delete it instead
-      TreeNode<T> pred = maximumNode(n.left);
-      n.interval = pred.interval;
-      n.items = pred.items;
-      for (Item<T> it : n.items) {
-        it.treenode = n;
+  private void rebuild() {
+    List<Item<T>> live = new ArrayList<Item<T>>(
+        sorted.length - numRemovedSorted + pending.size());
+    for (Item<T> item : sorted) {
+      if (!item.removed) {
+        live.add(item);
       }
-      n = pred;
     }
+    // The sorted items are a single run, so this is mostly a merge
+    live.addAll(pending);
+    Collections.sort(live, ORDER);
+    Item<T>[] items = live.toArray(IntervalTree.<T>newItems(live.size()));
+    for (Item<T> item : items) {
+      item.inSorted = true;
+    }
+    String[] ends = new String[items.length];
+    buildMaxEnds(items, ends, 0, items.length);
+    // Replace rather than modify the arrays, queries may hold the old ones
+    sorted = items;
+    maxEnds = ends;
+    numRemovedSorted = 0;
+    pending.clear();
+  }
 
-    TreeNode<T> child = (n.right == null) ? n.left : n.right;
-
-    if (nodeColor(n) == Color.BLACK) {
-      n.color = nodeColor(child);
-      fixTreeForDeletion(n);
-    }
-    replaceNode(n, child);
+  // Fill in the maximum end of the subtree rooted at the midpoint of
+  // [lo, hi), returning it. An empty subtree has the minimum end "", which no
+  // interval can have.
+  private static String buildMaxEnds(Item<?>[] items, String[] ends, int lo, int hi) {
+    if (lo >= hi) {
+      return "";
+    }
+    int mid = (lo + hi) >>> 1;
+    String max = nullStringMax(items[mid].interval.end,
+                               nullStringMax(buildMaxEnds(items, ends, lo, mid),
+                                             buildMaxEnds(items, ends, mid + 1, hi)));
+    ends[mid] = max;
+    return max;
+  }
 
-    if ((child != null) && (child.parent == null)) {
-      child.color = Color.BLACK;
+  // Visit all sorted intervals in [lo, hi) containing the target
+  private static <V> void query(Item<V>[] items, String[] ends, int lo, int hi,
+                                String target, Visitor<V> visitor) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (nullStringCompare(ends[mid], target) <= 0) {
+        // Everything in this subtree ends at or before the target
+        return;
+      }
+      query(items, ends, lo, mid, target, visitor);
+      Item<V> item = items[mid];
+      if (item.interval.begin.compareTo(target) > 0) {
+        // This and everything to the right begins after the target
+        return;
+      }
+      if (!item.removed && nullStringCompare(item.interval.end, target) > 0) {
+        visitor.visit(item);
+      }
+      lo = mid + 1;
     }
+  }
 
-    // Fix all the max values from what we just deleted up to the root
-    TreeNode<T> cur = n.parent;
-    while (cur != null) {
-      cur.updateMax();
-      cur = cur.parent;
+  // Add all sorted intervals in [lo, hi) intersecting [begin, end]
+  private static <V> void query(Item<V>[] items, String[] ends, int lo, int hi,
+                                Interval target, List<Item<V>> out) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (nullStringCompare(ends[mid], target.begin) <= 0) {
+        return;
+      }
+      query(items, ends, lo, mid, target, out);
+      Item<V> item = items[mid];
+      if (nullStringCompare(item.interval.begin, target.end) > 0) {
+        return;
+      }
+      if (!item.removed && nullStringCompare(item.interval.end, target.begin) > 0) {
+        out.add(item);
+      }
+      lo = mid + 1;
     }
-    return true;
   }
 
-  private void fixTreeForDeletion(TreeNode<T> n) {
-    /*
-     * Case 1: We deleted the root. All is well since we deleted one black node
-     * from every path.
-     */
-    if (n.parent == null) {
-      n.color = Color.BLACK;
-      return;
-    }
+  // Find all intervals containing the target
+  public List<Item<T>> query(String target) {
+    final List<Item<T>> out = new ArrayList<Item<T>>();
+    visit(target, new Visitor<T>() {
+      public void visit(Item<T> item) {
+        out.add(item);
+      }
+    });
+    return out;
+  }
 
-    /*
-     * Case 2: We have a red sibling. Rotate about the parent to prepare for
-     * remaining cases.
-     */
-    if (nodeColor(n.sibling()) == Color.RED) {
-      n.parent.color = Color.RED;
-      n.sibling().color = Color.BLACK;
-      if (n == n.parent.left) {
-        rotateLeft(n.parent);
-      } else {
-        rotateRight(n.parent);
+  // Find all intervals intersecting with [begin, end] (note inclusive end).
+  public List<Item<T>> query(String begin, String end) {
+    Interval target = new Interval(begin, end);
+    prepareQuery();
+    List<Item<T>> out = new ArrayList<Item<T>>();
+    if (!pointKeys.isEmpty() && nullStringCompare(target.begin, target.end) <= 0) {
+      for (String key : target.end == null
+                        ? pointKeys.tailSet(target.begin, true)
+                        : pointKeys.subSet(target.begin, true, target.end, true)) {
+        for (Item<T> item : points.get(key)) {
+          if (!item.removed) {
+            out.add(item);
+          }
+        }
       }
     }
-
-    /*
-     * Case 3: We can recolor and recurse
-     */
-    if (nodeColor(n.parent) == Color.BLACK
-        && nodeColor(n.sibling()) == Color.BLACK
-        && nodeColor(n.sibling().left) == Color.BLACK
-        && nodeColor(n.sibling().right) == Color.BLACK) {
-      n.sibling().color = Color.RED;
-      fixTreeForDeletion(n.parent);
-      return;
+    query(sorted, maxEnds, 0, sorted.length, target, out);
+    for (Item<T> item : pending) {
+      if (!item.removed
+          && nullStringCompare(item.interval.begin, target.end) <= 0
+          && nullStringCompare(item.interval.end, target.begin) > 0) {
+        out.add(item);
+      }
     }
+    return out;
+  }
 
-    /*
-     * Case 4
-     */
-    if (nodeColor(n.parent) == Color.RED
-        && nodeColor(n.sibling()) == Color.BLACK
-        && nodeColor(n.sibling().left) == Color.BLACK
-        && nodeColor(n.sibling().right) == Color.BLACK) {
-      n.sibling().color = Color.RED;
-      n.parent.color = Color.BLACK;
-      return;
+  /** Visit all intervals containing the target, without collecting them
+   * first. Intervals may be removed by the visitor, but not added. **/
+  public void visit(String target, Visitor<T> visitor) {
+    prepareQuery();
+    visiting++;
+    try {
+      List<Item<T>> exact = points.get(target);
+      if (exact != null) {
+        // Indexed loops, to avoid allocating iterators
+        for (int i = 0; i < exact.size(); i++) {
+          Item<T> item = exact.get(i);
+          if (!item.removed) {
+            visitor.visit(item);
+          }
+        }
+      }
+      query(sorted, maxEnds, 0, sorted.length, target, visitor);
+      for (int i = 0; i < pending.size(); i++) {
+        Item<T> item = pending.get(i);
+        if (!item.removed
+            && item.interval.begin.compareTo(target) <= 0
+            && nullStringCompare(item.interval.end, target) > 0) {
+          visitor.visit(item);
+        }
+      }
+    } finally {
+      doneVisiting();
     }
+  }
 
-    /*
-     * Case 5: Prepare for case 6
-     */
-    if (n == n.parent.left
-        && nodeColor(n.sibling()) == Color.BLACK
-        && nodeColor(n.sibling().left) == Color.RED
-        && nodeColor(n.sibling().right) == Color.BLACK) {
-      n.sibling().color = Color.RED;
-      n.sibling().left.color = Color.BLACK;
-      rotateRight(n.sibling());
-    }
-    else if (n == n.parent.right
-        && nodeColor(n.sibling()) == Color.BLACK
-        && nodeColor(n.sibling().right) == Color.RED
-        && nodeColor(n.sibling().left) == Color.BLACK) {
-      n.sibling().color = Color.RED;
-      n.sibling().right.color = Color.BLACK;
-      rotateLeft(n.sibling());
+  // Visit the sorted intervals in [lo, hi) in order, merging their
+  // beginnings with the keys from `cursor` on. Returns the updated cursor, the
+  // first key not before the last visited interval's beginning.
+  private static <V> int queryKeys(Item<V>[] items, String[] ends, int lo, int hi,
+                                   List<String> keys, int cursor, KeysVisitor<V> visitor) {
+    int numKeys = keys.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      // Later intervals can only contain keys from the cursor on
+      if (cursor >= numKeys || nullStringCompare(ends[mid], keys.get(cursor)) <= 0) {
+        return cursor;
+      }
+      cursor = queryKeys(items, ends, lo, mid, keys, cursor, visitor);
+      Item<V> item = items[mid];
+      if (item.interval.begin.compareTo(keys.get(numKeys - 1)) > 0) {
+        return cursor;
+      }
+      while (cursor < numKeys && keys.get(cursor).compareTo(item.interval.begin) < 0) {
+        cursor++;
+      }
+      if (!item.removed) {
+        int end = item.interval.end == null
+                  ? numKeys
+                  : lowerBound(keys, item.interval.end, cursor, numKeys);
+        if (end > cursor) {
+          visitor.visit(item, cursor, end);
+        }
+      }
+      lo = mid + 1;
     }
+    return cursor;
+  }
 
-    /*
-     * Case 6
-     */
-    n.sibling().color = nodeColor(n.parent);
-    n.parent.color = Color.BLACK;
-    if (n == n.parent.left) {
-      assert nodeColor(n.sibling().right) == Color.RED;
-      n.sibling().right.color = Color.BLACK;
-      rotateLeft(n.parent);
+  /** Visit all intervals containing any of a sorted list of distinct keys,
+   * along with the subset of keys each contains. The sorted intervals and
+   * keys are merged in a single pass. Intervals may be removed by the visitor,
+   * but not added. **/
+  public void queryKeys(List<String> keys, KeysVisitor<T> visitor) {
+    if (keys.isEmpty()) {
+      return;
     }
-    else {
-      assert nodeColor(n.sibling().left) == Color.RED;
-      n.sibling().left.color = Color.BLACK;
-      rotateRight(n.parent);
+    prepareQuery();
+    visiting++;
+    try {
+      if (!points.isEmpty()) {
+        for (int i = 0; i < keys.size(); i++) {
+          List<Item<T>> items = points.get(keys.get(i));
+          if (items != null) {
+            for (Item<T> item : items) {
+              if (!item.removed) {
+                visitor.visit(item, i, i + 1);
+              }
+            }
+          }
+        }
+      }
+      queryKeys(sorted, maxEnds, 0, sorted.length, keys, 0, visitor);
+      for (Item<T> item : pending) {
+        if (!item.removed) {
+          int start = lowerBound(keys, item.interval.begin, 0, keys.size());
+          int end = item.interval.end == null
+                    ? keys.size()
+                    : lowerBound(keys, item.interval.end, start, keys.size());
+          if (end > start) {
+            visitor.visit(item, start, end);
+          }
+        }
+      }
+    } finally {
+      doneVisiting();
     }
   }
 
-  private TreeNode<T> maximumNode(TreeNode<T> n) {
-    while (n.right != null) {
-      n = n.right;
+  // Unlink any intervals removed while visiting, once no query is in progress
+  private void doneVisiting() {
+    if (--visiting == 0) {
+      for (Item<T> item : deferred) {
+        unlink(item);
+      }
+      deferred.clear();
+      maybeRebuild();
     }
-    return n;
   }
 }
 
@@ -0,0 +1,359 @@
+package com.anaconda.skein;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* A durable write-ahead log for a KeyValueStore.
+ *
+ * Every commit to the store is appended to a log segment in a directory
+ * (usually the application directory on HDFS). Appends happen under the store
+ * lock and only buffer data. Writers then call `sync` after releasing the
+ * lock to wait until their commit is durable; concurrent syncs are batched
+ * into a single `hflush` (group commit). This includes the application
+ * master's own writes, such as deleting the keys of expired leases or
+ * completed containers. Watchers are notified under the lock, so may see a
+ * commit shortly before it's durable.
+ *
+ * Once the log grows larger than both the last snapshot and a minimum size, a
+ * new segment is started and a compacted snapshot is written in the
+ * background from a lock-free snapshot of the store. After the snapshot is
+ * complete, older segments and snapshots are deleted. The directory contains:
+ *
+ * - `wal-<revision>`: log entries, starting at the given revision
+ * - `snapshot-<revision>`: the full store at the given revision
+ *
+ * If writing to the log fails, an error is logged and the log is disabled.
+ * The store remains available, but is no longer durable.
+ */
+public class KeyValueLog implements KeyValueStore.CommitLog {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KeyValueLog.class);
+
+  private static final String WAL_PREFIX = "wal-";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  // The maximum number of values per entry in a snapshot file
+  private static final int SNAPSHOT_CHUNK_SIZE = 1000;
+
+  private final FileSystem fs;
+  private final Path dir;
+  private final KeyValueStore store;
+  private final long minSnapshotBytes;
+
+  // All guarded by `this`
+  private FSDataOutputStream out;
+  private long logBytes = 0;
+  private long snapshotBytes = 0;
+  private long appended;
+  private long flushed;
+  private boolean flushing = false;
+  private boolean closed = false;
+  private Thread snapshotThread;
+
+  private KeyValueLog(FileSystem fs, Path dir, KeyValueStore store,
+                      long minSnapshotBytes) {
+    this.fs = fs;
+    this.dir = dir;
+    this.store = store;
+    this.minSnapshotBytes = minSnapshotBytes;
+  }
+
+  /** Recover the store from the log in `dir` (if any), then log all future
+   * commits to the store there. **/
+  public static KeyValueLog open(FileSystem fs, Path dir, KeyValueStore store,
+                                 long minSnapshotBytes) throws IOException {
+    fs.mkdirs(dir);
+    recover(fs, dir, store);
+    KeyValueLog log = new KeyValueLog(fs, dir, store, minSnapshotBytes);
+    synchronized (store) {
+      synchronized (log) {
+        long revision = store.snapshot().getRevision();
+        log.appended = revision;
+        log.flushed = revision;
+        log.startSegment(revision + 1);
+      }
+      store.setCommitLog(log);
+    }
+    return log;
+  }
+
+  private static void recover(FileSystem fs, Path dir, KeyValueStore store)
+      throws IOException {
+    TreeMap<Long, Path> snapshots = new TreeMap<Long, Path>();
+    TreeMap<Long, Path> segments = new TreeMap<Long, Path>();
+    for (FileStatus status : fs.listStatus(dir)) {
+      Path path = status.getPath();
+      String name = path.getName();
+      if (name.endsWith(TMP_SUFFIX)) {
+        // Incomplete snapshot
+        fs.delete(path, false);
+      } else if (name.startsWith(SNAPSHOT_PREFIX)) {
+        snapshots.put(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length())), path);
+      } else if (name.startsWith(WAL_PREFIX)) {
+        segments.put(Long.parseLong(name.substring(WAL_PREFIX.length())), path);
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    if (!snapshots.isEmpty()) {
+      Map.Entry<Long, Path> latest = snapshots.lastEntry();
+      store.restore(latest.getKey(), readSnapshot(fs, latest.getValue(), latest.getKey()));
+    }
+    for (Path segment : segments.values()) {
+      if (!replay(fs, segment, store)) {
+        break;
+      }
+    }
+    KeyValueStore.Snapshot recovered = store.snapshot();
+    if (recovered.getRevision() > 0) {
+      LOG.info("Recovered {} keys at revision {} from {} in {} ms",
+               recovered.size(), recovered.getRevision(), dir,
+               System.currentTimeMillis() - start);
+    }
+
+    // Segments starting after the recovered revision can never be replayed
+    for (Path segment : segments.tailMap(recovered.getRevision(), false).values()) {
+      fs.delete(segment, false);
+    }
+  }
+
+  private static List<Msg.KeyValue> readSnapshot(FileSystem fs, Path path, long revision)
+      throws IOException {
+    List<Msg.KeyValue> values = new ArrayList<Msg.KeyValue>();
+    FSDataInputStream in = fs.open(path);
+    try {
+      Msg.KeyValueLogEntry entry;
+      while ((entry = Msg.KeyValueLogEntry.parseDelimitedFrom(in)) != null) {
+        if (entry.getRevision() != revision) {
+          throw new IOException("Snapshot " + path + " contains an entry at revision "
+                                + entry.getRevision());
+        }
+        values.addAll(entry.getPutList());
+      }
+    } finally {
+      in.close();
+    }
+    return values;
+  }
+
+  // Apply all new entries in a segment. Returns false if replay can't continue.
+  private static boolean replay(FileSystem fs, Path path, KeyValueStore store)
+      throws IOException {
+    FSDataInputStream in = fs.open(path);
+    try {
+      while (true) {
+        Msg.KeyValueLogEntry entry;
+        try {
+          entry = Msg.KeyValueLogEntry.parseDelimitedFrom(in);
+        } catch (IOException exc) {
+          // A partially written entry at the end of a segment from a failed
+          // attempt. Nothing after it was ever acknowledged.
+          LOG.warn("Ignoring truncated entry at the end of {}", path);
+          return true;
+        }
+        if (entry == null) {
+          return true;
+        }
+        long revision = store.snapshot().getRevision();
+        if (entry.getRevision() <= revision) {
+          continue;  // Already included in the snapshot
+        }
+        if (entry.getRevision() != revision + 1) {
+          LOG.error("Key-value store log is missing revisions {} through {}, "
+                    + "recovery stopped at revision {}",
+                    revision + 1, entry.getRevision() - 1, revision);
+          return false;
+        }
+        store.apply(entry);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void startSegment(long revision) throws IOException {
+    if (out != null) {
+      // Closing makes everything written so far durable
+      out.close();
+      flushed = appended;
+    }
+    out = fs.create(new Path(dir, WAL_PREFIX + revision), true);
+  }
+
+  @Override
+  public synchronized void append(Msg.KeyValueLogEntry entry) {
+    if (closed) {
+      return;
+    }
+    try {
+      if (snapshotThread == null && logBytes > Math.max(minSnapshotBytes, snapshotBytes)) {
+        // Called before the entry is published, so the latest committed
+        // snapshot contains everything in the previous segments.
+        startSegment(entry.getRevision());
+        startSnapshot(store.snapshot());
+      }
+      entry.writeDelimitedTo(out);
+      logBytes += entry.getSerializedSize();
+      appended = entry.getRevision();
+    } catch (IOException exc) {
+      fail(exc);
+    }
+  }
+
+  /** Wait until all commits up to `revision` are durable. **/
+  public void sync(long revision) {
+    while (true) {
+      FSDataOutputStream stream;
+      long target;
+      synchronized (this) {
+        while (flushing && !closed && flushed < revision) {
+          try {
+            wait();
+          } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (closed || flushed >= revision) {
+          return;
+        }
+        // Flush everything appended so far on behalf of all waiting writers
+        flushing = true;
+        stream = out;
+        target = appended;
+      }
+      IOException error = null;
+      try {
+        stream.hflush();
+      } catch (IOException exc) {
+        error = exc;
+      }
+      synchronized (this) {
+        flushing = false;
+        // If the segment was rolled, closing it already flushed the data
+        if (error == null || stream != out) {
+          flushed = Math.max(flushed, target);
+        } else {
+          fail(error);
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private void startSnapshot(final KeyValueStore.Snapshot snapshot) {
+    logBytes = 0;
+    snapshotThread = new Thread("kv-snapshot") {
+      public void run() {
+        try {
+          long bytes = writeSnapshot(snapshot);
+          synchronized (KeyValueLog.this) {
+            snapshotBytes = bytes;
+          }
+        } catch (IOException exc) {
+          // The log is still intact, a snapshot will be retried later
+          LOG.warn("Failed to write key-value store snapshot at revision {}",
+                   snapshot.getRevision(), exc);
+        } finally {
+          synchronized (KeyValueLog.this) {
+            snapshotThread = null;
+          }
+        }
+      }
+    };
+    snapshotThread.setDaemon(true);
+    snapshotThread.start();
+  }
+
+  private long writeSnapshot(KeyValueStore.Snapshot snapshot) throws IOException {
+    long start = System.currentTimeMillis();
+    long revision = snapshot.getRevision();
+    Path tmp = new Path(dir, SNAPSHOT_PREFIX + revision + TMP_SUFFIX);
+    long bytes = 0;
+    FSDataOutputStream stream = fs.create(tmp, true);
+    try {
+      Msg.KeyValueLogEntry.Builder chunk =
+          Msg.KeyValueLogEntry.newBuilder().setRevision(revision);
+      for (Msg.KeyValue kv : snapshot.all()) {
+        chunk.addPut(kv);
+        if (chunk.getPutCount() == SNAPSHOT_CHUNK_SIZE) {
+          bytes += writeEntry(chunk.build(), stream);
+          chunk.clearPut();
+        }
+      }
+      if (chunk.getPutCount() > 0) {
+        bytes += writeEntry(chunk.build(), stream);
+      }
+    } finally {
+      stream.close();
+    }
+    Path path = new Path(dir, SNAPSHOT_PREFIX + revision);
+    if (!fs.rename(tmp, path)) {
+      throw new IOException("Failed to rename " + tmp + " to " + path);
+    }
+
+    // Everything before the snapshot is no longer needed
+    for (FileStatus status : fs.listStatus(dir)) {
+      String name = status.getPath().getName();
+      if ((name.startsWith(SNAPSHOT_PREFIX) && !name.endsWith(TMP_SUFFIX)
+           && Long.parseLong(name.substring(SNAPSHOT_PREFIX.length())) < revision)
+          || (name.startsWith(WAL_PREFIX)
+              && Long.parseLong(name.substring(WAL_PREFIX.length())) <= revision)) {
+        fs.delete(status.getPath(), false);
+      }
+    }
+    LOG.debug("Wrote key-value store snapshot at revision {} ({} bytes) in {} ms",
+              revision, bytes, System.currentTimeMillis() - start);
+    return bytes;
+  }
+
+  private static long writeEntry(Msg.KeyValueLogEntry entry, FSDataOutputStream stream)
+      throws IOException {
+    entry.writeDelimitedTo(stream);
+    return entry.getSerializedSize();
+  }
+
+  private void fail(IOException exc) {
+    LOG.error("Failed to write to the key-value store log, the key-value "
+              + "store will no longer persist across application attempts", exc);
+    closed = true;
+    try {
+      out.close();
+    } catch (IOException ignored) {
+      // Already failed
+    }
+    notifyAll();
+  }
+
+  /** Wait for any in progress snapshot to complete. **/
+  void awaitSnapshot() throws InterruptedException {
+    Thread thread;
+    synchronized (this) {
+      thread = snapshotThread;
+    }
+    if (thread != null) {
+      thread.join();
+    }
+  }
+
+  /** Flush and close the log. Later commits are no longer logged. **/
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      notifyAll();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,617 @@
+package com.anaconda.skein;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* A sorted key-value store supporting lock-free reads.
+ *
+ * The store is backed by a persistent (path-copying) AVL tree. Nodes are
+ * never mutated after construction, so any root reference is an immutable
+ * snapshot of the store. Writers build up a new tree under an external lock
+ * (callers synchronize on the store itself), then publish it to readers with
+ * `commit`. Readers grab the latest committed snapshot and never block, or
+ * observe partially applied writes (e.g. half a transaction).
+ *
+ * Each node also tracks the size of its subtree (an order-statistic tree),
+ * making counts and positional lookups within a range O(log n).
+ *
+ * Every commit that modifies the store is assigned a new revision, and each
+ * value is stamped with the revision it was created and last modified at. A
+ * bounded history of recently committed snapshots is kept, allowing for
+ * consistent reads at a recent revision without holding any locks.
+ *
+ * The store also tracks an estimate of the memory used by live values, in
+ * total and per owning service, for enforcing quotas. The usage as of the
+ * latest commit is published along with it, for readers.
+ *
+ * If a `CommitLog` is set, the net changes of every commit are passed to it
+ * (under the writer lock) before being published to readers.
+ */
+public class KeyValueStore {
+
+  // A rough estimate of the per-entry overhead of the node, message, and
+  // key/value objects on the heap.
+  private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+  /** Receives the changes made by each commit. **/
+  public interface CommitLog {
+    void append(Msg.KeyValueLogEntry entry);
+  }
+
+  private static final class Node {
+    final String key;
+    final Msg.KeyValue value;
+    final Node left;
+    final Node right;
+    final int height;
+    final int size;
+
+    Node(String key, Msg.KeyValue value, Node left, Node right) {
+      this.key = key;
+      this.value = value;
+      this.left = left;
+      this.right = right;
+      this.height = Math.max(height(left), height(right)) + 1;
+      this.size = sizeOf(left) + sizeOf(right) + 1;
+    }
+  }
+
+  public static final class Snapshot {
+    private final Node root;
+    private final long revision;
+
+    private Snapshot(Node root, long revision) {
+      this.root = root;
+      this.revision = revision;
+    }
+
+    public int size() { return sizeOf(root); }
+
+    public long getRevision() { return revision; }
+
+    public boolean isEmpty() { return root == null; }
+
+    public Msg.KeyValue get(String key) {
+      Node n = root;
+      while (n != null) {
+        int cmp = key.compareTo(n.key);
+        if (cmp < 0) {
+          n = n.left;
+        } else if (cmp > 0) {
+          n = n.right;
+        } else {
+          return n.value;
+        }
+      }
+      return null;
+    }
+
+    // The number of keys less than `key`. A null key is greater than all keys.
+    public int rank(String key) {
+      if (key == null) {
+        return size();
+      }
+      int rank = 0;
+      Node n = root;
+      while (n != null) {
+        if (key.compareTo(n.key) <= 0) {
+          n = n.left;
+        } else {
+          rank += sizeOf(n.left) + 1;
+          n = n.right;
+        }
+      }
+      return rank;
+    }
+
+    // The number of keys in [start, end). A null start or end indicates an
+    // open bound.
+    public int count(String start, String end) {
+      return Math.max(0, rank(end) - (start == null ? 0 : rank(start)));
+    }
+
+    // The value with the given rank (0-indexed in key order).
+    public Msg.KeyValue select(int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+      }
+      Node n = root;
+      while (true) {
+        int leftSize = sizeOf(n.left);
+        if (index < leftSize) {
+          n = n.left;
+        } else if (index > leftSize) {
+          index -= leftSize + 1;
+          n = n.right;
+        } else {
+          return n.value;
+        }
+      }
+    }
+
+    // Iterate over all values with keys in [start, end). A null start or
+    // end indicates an open bound.
+    public Iterable<Msg.KeyValue> range(String start, String end) {
+      return range(start, end, false);
+    }
+
+    // Iterate over all values with keys in [start, end), optionally in
+    // descending order. A null start or end indicates an open bound.
+    public Iterable<Msg.KeyValue> range(final String start, final String end,
+                                        final boolean reverse) {
+      return new Iterable<Msg.KeyValue>() {
+        public Iterator<Msg.KeyValue> iterator() {
+          return new RangeIterator(root, start, end, reverse);
+        }
+      };
+    }
+
+    public Iterable<Msg.KeyValue> all() {
+      return range(null, null);
+    }
+  }
+
+  private static final class RangeIterator implements Iterator<Msg.KeyValue> {
+    private final String start;
+    private final String end;
+    private final boolean reverse;
+    private final Node[] stack;
+    private int depth = 0;
+
+    RangeIterator(Node root, String start, String end, boolean reverse) {
+      this.start = start;
+      this.end = end;
+      this.reverse = reverse;
+      this.stack = new Node[height(root)];
+      if (start != null && end != null && start.compareTo(end) > 0) {
+        return;  // empty range
+      }
+      // Push the path to the first node in iteration order
+      Node n = root;
+      while (n != null) {
+        if (reverse) {
+          if (end == null || n.key.compareTo(end) < 0) {
+            stack[depth++] = n;
+            n = n.right;
+          } else {
+            n = n.left;
+          }
+        } else {
+          if (start == null || start.compareTo(n.key) <= 0) {
+            stack[depth++] = n;
+            n = n.left;
+          } else {
+            n = n.right;
+          }
+        }
+      }
+      trim();
+    }
+
+    // Stop once the next node is out of bounds
+    private void trim() {
+      if (depth > 0) {
+        String key = stack[depth - 1].key;
+        if (reverse ? (start != null && key.compareTo(start) < 0)
+                    : (end != null && key.compareTo(end) >= 0)) {
+          depth = 0;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return depth > 0;
+    }
+
+    @Override
+    public Msg.KeyValue next() {
+      if (depth == 0) {
+        throw new NoSuchElementException();
+      }
+      Node out = stack[--depth];
+      Node n = reverse ? out.left : out.right;
+      while (n != null) {
+        stack[depth++] = n;
+        n = reverse ? n.right : n.left;
+      }
+      trim();
+      return out.value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  // The tree being modified by writers.
+  private Node working = null;
+
+  // The latest tree visible to readers.
+  private volatile Snapshot committed = new Snapshot(null, 0);
+
+  // The previous value found by the last `delete` call.
+  private Msg.KeyValue previous;
+
+  // Estimated memory used by live values, and quotas on it (< 0 for none).
+  private long bytes = 0;
+  private final Map<String, Long> serviceBytes = new HashMap<String, Long>();
+  private boolean serviceBytesChanged = false;
+  private volatile long maxBytes = -1;
+  private volatile long maxServiceBytes = -1;
+  // The memory usage as of the latest commit, for readers
+  private volatile long committedBytes = 0;
+  private volatile Map<String, Long> committedServiceBytes = Collections.emptyMap();
+
+  // If logging, the net changes since the last commit (null for deletes).
+  private CommitLog commitLog;
+  private final Map<String, Msg.KeyValue> pendingChanges =
+      new LinkedHashMap<String, Msg.KeyValue>();
+
+  // A ring buffer of recently committed snapshots, indexed by revision. The
+  // history is bounded both by number of revisions and by the serialized
+  // size of values that are only reachable from old snapshots.
+  private final AtomicReferenceArray<Snapshot> history;
+  private final long[] replacedBytes;
+  private final long maxHistoryBytes;
+  private volatile long oldestRevision = 0;
+  private long pendingReplacedBytes = 0;
+  private long retainedBytes = 0;
+
+  public KeyValueStore(int maxHistory, long maxHistoryBytes) {
+    if (maxHistory < 2) {
+      throw new IllegalArgumentException("maxHistory must be >= 2, got " + maxHistory);
+    }
+    this.history = new AtomicReferenceArray<Snapshot>(maxHistory);
+    this.replacedBytes = new long[maxHistory];
+    this.maxHistoryBytes = maxHistoryBytes;
+    this.history.set(0, committed);
+  }
+
+  public KeyValueStore() {
+    this(1000, 16 * 1024 * 1024);
+  }
+
+  /** The latest committed state of the store. Never blocks. **/
+  public Snapshot snapshot() {
+    return committed;
+  }
+
+  /** The committed state at a given revision, or null if unavailable. **/
+  public Snapshot snapshot(long revision) {
+    Snapshot latest = committed;
+    if (revision == latest.revision) {
+      return latest;
+    }
+    if (revision > latest.revision || revision < oldestRevision) {
+      return null;
+    }
+    Snapshot out = history.get(slot(revision));
+    // The slot may have been reused since checking the bounds
+    return (out != null && out.revision == revision) ? out : null;
+  }
+
+  /** The oldest revision still available in the history. **/
+  public long getOldestRevision() {
+    return oldestRevision;
+  }
+
+  /** The state of the store including uncommitted writes. Writers only. **/
+  public synchronized Snapshot uncommittedSnapshot() {
+    if (working == committed.root) {
+      return committed;
+    }
+    return new Snapshot(working, committed.revision + 1);
+  }
+
+  /** Set the log receiving all future commits, or null to disable. **/
+  public synchronized void setCommitLog(CommitLog log) {
+    commitLog = log;
+    pendingChanges.clear();
+  }
+
+  /** The estimated heap usage of a single entry. **/
+  public static long estimateBytes(String key, int valueSize) {
+    // Java strings use 2 bytes per char
+    return 2L * key.length() + valueSize + ENTRY_OVERHEAD_BYTES;
+  }
+
+  public static long estimateBytes(Msg.KeyValue kv) {
+    return estimateBytes(kv.getKey(), kv.getValue().size());
+  }
+
+  private void account(Msg.KeyValue kv, int sign) {
+    long size = sign * estimateBytes(kv);
+    bytes += size;
+    if (kv.hasOwner()) {
+      String service = kv.getOwner().getServiceName();
+      Long prev = serviceBytes.get(service);
+      long total = (prev == null ? 0 : prev) + size;
+      if (total == 0) {
+        serviceBytes.remove(service);
+      } else {
+        serviceBytes.put(service, total);
+      }
+      serviceBytesChanged = true;
+    }
+  }
+
+  // Must hold the lock
+  private void publishUsage() {
+    committedBytes = bytes;
+    if (serviceBytesChanged) {
+      committedServiceBytes = Collections.unmodifiableMap(new HashMap<String, Long>(serviceBytes));
+      serviceBytesChanged = false;
+    }
+  }
+
+  /** Set quotas on the estimated memory usage, negative for no limit.
+   *
+   * The store doesn't enforce these itself, writers should check them with
+   * `getBytes` before writing. **/
+  public synchronized void setQuotas(long maxBytes, long maxServiceBytes) {
+    this.maxBytes = maxBytes;
+    this.maxServiceBytes = maxServiceBytes;
+  }
+
+  public long getMaxBytes() { return maxBytes; }
+
+  public long getMaxServiceBytes() { return maxServiceBytes; }
+
+  /** The estimated memory used by all values, including uncommitted writes. **/
+  public synchronized long getBytes() { return bytes; }
+
+  /** The estimated memory used by values owned by a service. **/
+  public synchronized long getBytes(String service) {
+    Long out = serviceBytes.get(service);
+    return out == null ? 0 : out;
+  }
+
+  /** The estimated memory used by all values as of the latest commit.
+   * Never blocks. **/
+  public long getCommittedBytes() { return committedBytes; }
+
+  /** The estimated memory used per owning service as of the latest commit.
+   * Never blocks. **/
+  public Map<String, Long> getCommittedServiceBytes() { return committedServiceBytes; }
+
+  public synchronized Msg.KeyValue get(String key) {
+    return uncommittedSnapshot().get(key);
+  }
+
+  /** Set a value, stamping it with the pending revision.
+   *
+   * Returns the value as stored. **/
+  public synchronized Msg.KeyValue put(Msg.KeyValue.Builder builder) {
+    long revision = committed.revision + 1;
+    Msg.KeyValue prev = get(builder.getKey());
+    Msg.KeyValue value = builder
+        .setCreateRevision(prev == null ? revision : prev.getCreateRevision())
+        .setModRevision(revision)
+        .build();
+    working = insert(working, value.getKey(), value);
+    if (commitLog != null) {
+      pendingChanges.put(value.getKey(), value);
+    }
+    if (prev != null) {
+      pendingReplacedBytes += prev.getSerializedSize();
+      account(prev, -1);
+    }
+    account(value, 1);
+    return value;
+  }
+
+  /** Remove a key, returning the previous value (if any). **/
+  public synchronized Msg.KeyValue remove(String key) {
+    previous = null;
+    working = delete(working, key);
+    if (previous != null) {
+      pendingReplacedBytes += previous.getSerializedSize();
+      account(previous, -1);
+      if (commitLog != null) {
+        pendingChanges.put(key, null);
+      }
+    }
+    return previous;
+  }
+
+  /** Replace the contents of the store with a recovered state.
+   *
+   * The values must be sorted by key, and already stamped with their
+   * revisions. Any existing history is dropped. **/
+  public synchronized void restore(long revision, List<Msg.KeyValue> values) {
+    working = build(values, 0, values.size());
+    bytes = 0;
+    serviceBytes.clear();
+    for (Msg.KeyValue value : values) {
+      account(value, 1);
+    }
+    pendingReplacedBytes = 0;
+    pendingChanges.clear();
+    for (int i = 0; i < history.length(); i++) {
+      history.set(i, null);
+      replacedBytes[i] = 0;
+    }
+    retainedBytes = 0;
+    serviceBytesChanged = true;
+    publishUsage();
+    committed = new Snapshot(working, revision);
+    oldestRevision = revision;
+    history.set(slot(revision), committed);
+  }
+
+  /** Replay a logged commit on top of the current state. **/
+  public synchronized long apply(Msg.KeyValueLogEntry entry) {
+    if (entry.getRevision() != committed.revision + 1) {
+      throw new IllegalArgumentException("Expected revision " + (committed.revision + 1)
+                                         + ", got " + entry.getRevision());
+    }
+    for (Msg.KeyValue value : entry.getPutList()) {
+      Msg.KeyValue prev = get(value.getKey());
+      working = insert(working, value.getKey(), value);
+      if (prev != null) {
+        pendingReplacedBytes += prev.getSerializedSize();
+        account(prev, -1);
+      }
+      account(value, 1);
+    }
+    for (String key : entry.getDeleteList()) {
+      remove(key);
+    }
+    pendingChanges.clear();
+    // Always bump the revision, even if the logged changes were no-ops
+    return commit(true);
+  }
+
+  /** Publish all writes since the last commit to readers.
+   *
+   * Returns the committed revision. **/
+  public synchronized long commit() {
+    return commit(false);
+  }
+
+  private long commit(boolean force) {
+    if (!force && working == committed.root) {
+      return committed.revision;
+    }
+    Snapshot snapshot = new Snapshot(working, committed.revision + 1);
+    if (commitLog != null) {
+      Msg.KeyValueLogEntry.Builder entry =
+          Msg.KeyValueLogEntry.newBuilder().setRevision(snapshot.revision);
+      for (Map.Entry<String, Msg.KeyValue> change : pendingChanges.entrySet()) {
+        if (change.getValue() == null) {
+          entry.addDelete(change.getKey());
+        } else {
+          entry.addPut(change.getValue());
+        }
+      }
+      pendingChanges.clear();
+      commitLog.append(entry.build());
+    }
+    if (snapshot.revision - oldestRevision >= history.length()) {
+      dropOldest();
+    }
+    int slot = slot(snapshot.revision);
+    history.set(slot, snapshot);
+    replacedBytes[slot] = pendingReplacedBytes;
+    retainedBytes += pendingReplacedBytes;
+    pendingReplacedBytes = 0;
+    publishUsage();
+    committed = snapshot;
+    while (retainedBytes > maxHistoryBytes && oldestRevision < snapshot.revision) {
+      dropOldest();
+    }
+    return snapshot.revision;
+  }
+
+  private int slot(long revision) {
+    return (int) (revision % history.length());
+  }
+
+  private void dropOldest() {
+    history.set(slot(oldestRevision), null);
+    oldestRevision += 1;
+    // Values replaced by the new oldest revision are no longer reachable
+    // from any snapshot in the history.
+    int slot = slot(oldestRevision);
+    retainedBytes -= replacedBytes[slot];
+    replacedBytes[slot] = 0;
+  }
+
+  private static int height(Node n) {
+    return n == null ? 0 : n.height;
+  }
+
+  private static int sizeOf(Node n) {
+    return n == null ? 0 : n.size;
+  }
+
+  // Build a balanced tree from a sorted list of values
+  private static Node build(List<Msg.KeyValue> values, int lo, int hi) {
+    if (lo >= hi) {
+      return null;
+    }
+    int mid = (lo + hi) >>> 1;
+    Msg.KeyValue value = values.get(mid);
+    return new Node(value.getKey(), value,
+                    build(values, lo, mid), build(values, mid + 1, hi));
+  }
+
+  private Node insert(Node n, String key, Msg.KeyValue value) {
+    if (n == null) {
+      return new Node(key, value, null, null);
+    }
+    int cmp = key.compareTo(n.key);
+    if (cmp < 0) {
+      return balance(n.key, n.value, insert(n.left, key, value), n.right);
+    } else if (cmp > 0) {
+      return balance(n.key, n.value, n.left, insert(n.right, key, value));
+    }
+    return new Node(key, value, n.left, n.right);
+  }
+
+  private Node delete(Node n, String key) {
+    if (n == null) {
+      return null;
+    }
+    int cmp = key.compareTo(n.key);
+    if (cmp < 0) {
+      Node left = delete(n.left, key);
+      return left == n.left ? n : balance(n.key, n.value, left, n.right);
+    } else if (cmp > 0) {
+      Node right = delete(n.right, key);
+      return right == n.right ? n : balance(n.key, n.value, n.left, right);
+    }
+    previous = n.value;
+    if (n.left == null) {
+      return n.right;
+    } else if (n.right == null) {
+      return n.left;
+    }
+    Node min = n.right;
+    while (min.left != null) {
+      min = min.left;
+    }
+    return balance(min.key, min.value, n.left, deleteMin(n.right));
+  }
+
+  private static Node deleteMin(Node n) {
+    if (n.left == null) {
+      return n.right;
+    }
+    return balance(n.key, n.value, deleteMin(n.left), n.right);
+  }
+
+  private static Node balance(String key, Msg.KeyValue value, Node left, Node right) {
+    int hl = height(left);
+    int hr = height(right);
+    if (hl > hr + 1) {
+      if (height(left.left) >= height(left.right)) {
+        return new Node(left.key, left.value, left.left,
+                        new Node(key, value, left.right, right));
+      }
+      Node lr = left.right;
+      return new Node(lr.key, lr.value,
+                      new Node(left.key, left.value, left.left, lr.left),
+                      new Node(key, value, lr.right, right));
+    } else if (hr > hl + 1) {
+      if (height(right.right) >= height(right.left)) {
+        return new Node(right.key, right.value,
+                        new Node(key, value, left, right.left),
+                        right.right);
+      }
+      Node rl = right.left;
+      return new Node(rl.key, rl.value,
+                      new Node(key, value, left, rl.left),
+                      new Node(right.key, right.value, rl.right, right.right));
+    }
+    return new Node(key, value, left, right);
+  }
+}
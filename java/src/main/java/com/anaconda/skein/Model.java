@@ -400,6 +400,8 @@ public class Model {
     private long finishTime;
     private ContainerRequest req;
     private Set<String> ownedKeys;
+    private Set<Long> ownedPermits;
+    private Set<Long> ownedQueueItems;
     private String exitMessage;
 
     public Container() {}
@@ -412,6 +414,8 @@ public class Model {
       this.startTime = 0;
       this.finishTime = 0;
       this.ownedKeys = new HashSet<String>();
+      this.ownedPermits = new HashSet<Long>();
+      this.ownedQueueItems = new HashSet<Long>();
     }
 
     public String toString() {
@@ -496,5 +500,27 @@ public class Model {
 
     public Set<String> getOwnedKeys() { return ownedKeys; }
     public void clearOwnedKeys() { ownedKeys.clear(); }
+
+    public void addOwnedPermit(long token) {
+      ownedPermits.add(token);
+    }
+
+    public void removeOwnedPermit(long token) {
+      ownedPermits.remove(token);
+    }
+
+    public Set<Long> getOwnedPermits() { return ownedPermits; }
+    public void clearOwnedPermits() { ownedPermits.clear(); }
+
+    public void addOwnedQueueItem(long id) {
+      ownedQueueItems.add(id);
+    }
+
+    public void removeOwnedQueueItem(long id) {
+      ownedQueueItems.remove(id);
+    }
+
+    public Set<Long> getOwnedQueueItems() { return ownedQueueItems; }
+    public void clearOwnedQueueItems() { ownedQueueItems.clear(); }
   }
 }
@@ -0,0 +1,196 @@
+package com.anaconda.skein;
+
+import com.google.common.math.LongMath;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* The writes of a request that have been validated but not yet applied.
+ *
+ * All operations in a transaction are validated before any of them are
+ * applied, so each must be checked against the store as the operations
+ * before it would leave it. Writes are recorded here as they're validated,
+ * and reads see the store with those writes applied. The estimated memory
+ * usage includes them too, so quotas apply to the request as a whole.
+ *
+ * Values are sized as they'll be stored, compressed if worthwhile. Each is
+ * compressed once here and reused when applying. Values of puts can be
+ * compressed up front with `prepareValues`, before taking the lock.
+ *
+ * Increments and appends are converted to puts of the updated value while
+ * validating, and the puts kept to be applied in the same order.
+ *
+ * Not thread-safe. Except for `prepareValues`, callers must hold the lock on
+ * the store.
+ */
+public class PendingWrites {
+  private final KeyValueStore store;
+  private final ValueCompressor compressor;
+  // Keys written by earlier operations, null if deleted
+  private final TreeMap<String, Msg.KeyValue> values = new TreeMap<String, Msg.KeyValue>();
+  private final ArrayDeque<Msg.PutKeyRequest> updates = new ArrayDeque<Msg.PutKeyRequest>();
+  // Values as stored by value as requested, identical if not compressed.
+  // Kept by `clear`.
+  private final Map<ByteString, ByteString> prepared =
+      new IdentityHashMap<ByteString, ByteString>();
+  // The change in estimated memory usage, in total and per owning service
+  private long bytes = 0;
+  private final Map<String, Long> serviceBytes = new HashMap<String, Long>();
+
+  public PendingWrites(KeyValueStore store, ValueCompressor compressor) {
+    this.store = store;
+    this.compressor = compressor;
+  }
+
+  /** The value of a key with all pending writes applied, or null if missing. **/
+  public Msg.KeyValue get(String key) {
+    if (values.containsKey(key)) {
+      return values.get(key);
+    }
+    return store.get(key);
+  }
+
+  /** The estimated memory used by all values with pending writes applied. **/
+  public long getBytes() {
+    return store.getBytes() + bytes;
+  }
+
+  /** The estimated memory used by values owned by a service with pending
+   * writes applied. **/
+  public long getBytes(String service) {
+    Long change = serviceBytes.get(service);
+    return store.getBytes(service) + (change == null ? 0 : change);
+  }
+
+  private void account(Msg.KeyValue kv, int sign) {
+    if (kv == null) {
+      return;
+    }
+    long size = sign * KeyValueStore.estimateBytes(kv);
+    bytes += size;
+    if (kv.hasOwner()) {
+      String service = kv.getOwner().getServiceName();
+      Long prev = serviceBytes.get(service);
+      serviceBytes.put(service, (prev == null ? 0 : prev) + size);
+    }
+  }
+
+  /** A value as it will be stored, compressed if worthwhile. The result is
+   * the same object as the value if it's stored uncompressed. **/
+  public ByteString prepareValue(ByteString value) {
+    ByteString out = prepared.get(value);
+    if (out == null) {
+      out = compressor.compress(value);
+      if (out == null) {
+        out = value;
+      }
+      prepared.put(value, out);
+    }
+    return out;
+  }
+
+  /** Compress the values of any puts in advance. Doesn't use the store, so
+   * this is done before taking its lock. **/
+  public void prepareValues(List<Msg.OpRequest> ops) {
+    for (Msg.OpRequest op : ops) {
+      if (op.getRequestCase() == Msg.OpRequest.RequestCase.PUT_KEY
+          && !op.getPutKey().getIgnoreValue()) {
+        prepareValue(op.getPutKey().getValue());
+      }
+    }
+  }
+
+  /** Forget all pending writes once applied, keeping prepared values. **/
+  public void clear() {
+    values.clear();
+    updates.clear();
+    bytes = 0;
+    serviceBytes.clear();
+  }
+
+  /** Record a put of a value, as it will be stored. **/
+  public void put(Msg.KeyValue kv) {
+    account(get(kv.getKey()), -1);
+    account(kv, 1);
+    values.put(kv.getKey(), kv);
+  }
+
+  /** Record a delete of all keys in [start, end). A null start or end
+   * indicates an open bound. **/
+  public void removeRange(String start, String end) {
+    for (Msg.KeyValue kv : store.uncommittedSnapshot().range(start, end)) {
+      if (!values.containsKey(kv.getKey())) {
+        account(kv, -1);
+        values.put(kv.getKey(), null);
+      }
+    }
+    Map<String, Msg.KeyValue> written;
+    if (start == null) {
+      written = end == null ? values : values.headMap(end);
+    } else {
+      written = end == null ? values.tailMap(start) : values.subMap(start, end);
+    }
+    for (Map.Entry<String, Msg.KeyValue> entry : written.entrySet()) {
+      account(entry.getValue(), -1);
+      entry.setValue(null);
+    }
+  }
+
+  /** Convert an increment or append to a put of the updated value, keeping
+   * the key's owner and lease. The put is queued to be taken by `nextUpdate`
+   * when applying, but still needs to be validated and recorded as a put.
+   * Returns null if the current value can't be updated. **/
+  public Msg.PutKeyRequest update(Msg.OpRequest op, StreamObserver<?> resp) {
+    String key = op.getRequestCase() == Msg.OpRequest.RequestCase.INCREMENT
+                 ? op.getIncrement().getKey()
+                 : op.getAppend().getKey();
+    Msg.KeyValue prev = get(key);
+    ByteString value = prev == null ? ByteString.EMPTY : compressor.getValue(prev);
+
+    Msg.PutKeyRequest.Builder builder = Msg.PutKeyRequest.newBuilder()
+        .setKey(key)
+        .setIgnoreOwner(true)
+        .setLease(prev == null ? 0 : prev.getLease());
+
+    if (op.getRequestCase() == Msg.OpRequest.RequestCase.INCREMENT) {
+      long current = 0;
+      if (prev != null) {
+        try {
+          current = Long.parseLong(value.toStringUtf8());
+        } catch (NumberFormatException exc) {
+          resp.onError(Status.INVALID_ARGUMENT
+              .withDescription("Value of key '" + key + "' is not an integer")
+              .asRuntimeException());
+          return null;
+        }
+      }
+      try {
+        current = LongMath.checkedAdd(current, op.getIncrement().getDelta());
+      } catch (ArithmeticException exc) {
+        resp.onError(Status.OUT_OF_RANGE
+            .withDescription("Incrementing key '" + key + "' would overflow")
+            .asRuntimeException());
+        return null;
+      }
+      builder.setValue(ByteString.copyFromUtf8(Long.toString(current)));
+    } else {
+      builder.setValue(value.concat(op.getAppend().getValue()));
+    }
+    Msg.PutKeyRequest put = builder.build();
+    updates.add(put);
+    return put;
+  }
+
+  /** The next put converted by `update`, in order. **/
+  public Msg.PutKeyRequest nextUpdate() {
+    return updates.remove();
+  }
+}
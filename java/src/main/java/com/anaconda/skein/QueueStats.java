@@ -0,0 +1,43 @@
+package com.anaconda.skein;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Statistics on a set of bounded outbound queues, for reporting. Thread-safe. */
+public class QueueStats {
+  private final AtomicLong queued = new AtomicLong(0);
+  private final AtomicLong peak = new AtomicLong(0);
+  private final AtomicLong coalesced = new AtomicLong(0);
+  private final AtomicLong canceled = new AtomicLong(0);
+
+  public void add(long count) {
+    long current = queued.addAndGet(count);
+    long max = peak.get();
+    while (current > max && !peak.compareAndSet(max, current)) {
+      max = peak.get();
+    }
+  }
+
+  public void remove(long count) {
+    queued.addAndGet(-count);
+  }
+
+  public void recordCoalesced() {
+    coalesced.incrementAndGet();
+  }
+
+  public void recordCanceled() {
+    canceled.incrementAndGet();
+  }
+
+  /** The number of items currently queued, across all queues. **/
+  public long getQueued() { return queued.get(); }
+
+  /** The largest value of `getQueued` seen so far. **/
+  public long getPeak() { return peak.get(); }
+
+  /** The number of times a full queue was coalesced. **/
+  public long getCoalesced() { return coalesced.get(); }
+
+  /** The number of times a full queue caused a cancellation. **/
+  public long getCanceled() { return canceled.get(); }
+}
@@ -0,0 +1,123 @@
+package com.anaconda.skein;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/* A table of named counting semaphores with FIFO wait queues.
+ *
+ * Each semaphore has a fixed number of permits (1 for a lock), set by its
+ * first holder or waiter. Permits are granted in arrival order, and releasing
+ * a permit hands it directly to the next waiter, so each release wakes at most
+ * one waiter. Semaphores with no holders or waiters are removed.
+ *
+ * Holders are compared by equality, and may only hold or wait for a single
+ * permit of a given semaphore at a time.
+ *
+ * Not thread-safe, callers must synchronize externally.
+ */
+public class Semaphores<T> {
+
+  private static final class Semaphore<T> {
+    private final int permits;
+    private final Set<T> holders = new LinkedHashSet<T>();
+    // Insertion ordered, so this is a FIFO queue with O(1) removal
+    private final Set<T> waiters = new LinkedHashSet<T>();
+
+    Semaphore(int permits) {
+      this.permits = permits;
+    }
+  }
+
+  private final Map<String, Semaphore<T>> semaphores = new HashMap<String, Semaphore<T>>();
+
+  /** The number of semaphores in use. **/
+  public int size() { return semaphores.size(); }
+
+  /** The number of permits of a semaphore, or 0 if it's not in use. **/
+  public int getPermits(String name) {
+    Semaphore<T> sem = semaphores.get(name);
+    return sem == null ? 0 : sem.permits;
+  }
+
+  public int numHolders(String name) {
+    Semaphore<T> sem = semaphores.get(name);
+    return sem == null ? 0 : sem.holders.size();
+  }
+
+  public int numWaiters(String name) {
+    Semaphore<T> sem = semaphores.get(name);
+    return sem == null ? 0 : sem.waiters.size();
+  }
+
+  public boolean isHolding(String name, T holder) {
+    Semaphore<T> sem = semaphores.get(name);
+    return sem != null && sem.holders.contains(holder);
+  }
+
+  private Semaphore<T> getOrCreate(String name, int permits, T holder) {
+    if (permits <= 0) {
+      throw new IllegalArgumentException("permits must be positive");
+    }
+    Semaphore<T> sem = semaphores.get(name);
+    if (sem == null) {
+      sem = new Semaphore<T>(permits);
+      semaphores.put(name, sem);
+    } else if (sem.permits != permits) {
+      throw new IllegalArgumentException("Semaphore '" + name + "' has "
+                                         + sem.permits + " permits, not " + permits);
+    } else if (sem.holders.contains(holder) || sem.waiters.contains(holder)) {
+      throw new IllegalArgumentException("Already holding or waiting for '" + name + "'");
+    }
+    return sem;
+  }
+
+  /** Acquire a permit. Returns true if it was granted immediately, otherwise
+   * the holder waits in line until granted by a `release`. **/
+  public boolean acquire(String name, int permits, T holder) {
+    Semaphore<T> sem = getOrCreate(name, permits, holder);
+    // Never jump ahead of earlier waiters
+    if (sem.waiters.isEmpty() && sem.holders.size() < sem.permits) {
+      sem.holders.add(holder);
+      return true;
+    }
+    sem.waiters.add(holder);
+    return false;
+  }
+
+  /** Acquire a permit only if one is available now. **/
+  public boolean tryAcquire(String name, int permits, T holder) {
+    Semaphore<T> sem = getOrCreate(name, permits, holder);
+    if (sem.waiters.isEmpty() && sem.holders.size() < sem.permits) {
+      sem.holders.add(holder);
+      return true;
+    }
+    return false;
+  }
+
+  /** Release a permit, or stop waiting for one. If a permit was released, it
+   * is granted to the next waiter (if any), which is returned. **/
+  public T release(String name, T holder) {
+    Semaphore<T> sem = semaphores.get(name);
+    if (sem == null) {
+      return null;
+    }
+    T next = null;
+    if (sem.holders.remove(holder)) {
+      Iterator<T> iter = sem.waiters.iterator();
+      if (iter.hasNext()) {
+        next = iter.next();
+        iter.remove();
+        sem.holders.add(next);
+      }
+    } else {
+      sem.waiters.remove(holder);
+    }
+    if (sem.holders.isEmpty() && sem.waiters.isEmpty()) {
+      semaphores.remove(name);
+    }
+    return next;
+  }
+}
@@ -0,0 +1,153 @@
+package com.anaconda.skein;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* An append-only log of records, addressed by offset.
+ *
+ * Records are packed into fixed-size chunks, each holding the record data in
+ * a single byte array alongside the record end positions, rather than as one
+ * object per record. Offsets start at 0 and increase by one per record. The
+ * oldest records are dropped once the log exceeds its retention limits, and
+ * a chunk is freed once all of its records have been dropped.
+ *
+ * Not thread-safe, callers must synchronize externally.
+ */
+public class StreamLog {
+
+  private static final class Chunk {
+    private final long base;
+    // The end of each record in `data`
+    private final int[] ends;
+    private byte[] data = new byte[64];
+    private int count = 0;
+
+    Chunk(long base, int capacity) {
+      this.base = base;
+      this.ends = new int[capacity];
+    }
+
+    int start(int index) { return index == 0 ? 0 : ends[index - 1]; }
+
+    int length(int index) { return ends[index] - start(index); }
+
+    void append(ByteString value) {
+      int start = start(count);
+      int end = start + value.size();
+      if (end > data.length) {
+        data = Arrays.copyOf(data, Math.max(end, data.length * 2));
+      }
+      value.copyTo(data, start);
+      ends[count++] = end;
+    }
+
+    ByteString get(int index) {
+      return ByteString.copyFrom(data, start(index), length(index));
+    }
+
+    boolean isFull() { return count == ends.length; }
+
+    void seal() {
+      // No more appends, release unused capacity
+      data = Arrays.copyOf(data, start(count));
+    }
+  }
+
+  private final int chunkSize;
+  private final List<Chunk> chunks = new ArrayList<Chunk>();
+  private long firstOffset = 0;
+  private long nextOffset = 0;
+  private long bytes = 0;
+  private long maxRecords = -1;
+  private long maxBytes = -1;
+
+  public StreamLog(int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  /** The offset of the oldest retained record. **/
+  public long getFirstOffset() { return firstOffset; }
+
+  /** The offset the next appended record will have. **/
+  public long getNextOffset() { return nextOffset; }
+
+  /** The number of retained records. **/
+  public long size() { return nextOffset - firstOffset; }
+
+  /** The total size of all retained records. **/
+  public long getBytes() { return bytes; }
+
+  public long getMaxRecords() { return maxRecords; }
+
+  public long getMaxBytes() { return maxBytes; }
+
+  /** Limit the number of records and bytes retained. Negative for no limit.
+   * The most recent record is always retained. **/
+  public void setRetention(long maxRecords, long maxBytes) {
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+    trim();
+  }
+
+  /** Append a record, returning its offset. **/
+  public long append(ByteString value) {
+    Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    if (last == null || last.isFull()) {
+      if (last != null) {
+        last.seal();
+      }
+      last = new Chunk(nextOffset, chunkSize);
+      chunks.add(last);
+    }
+    last.append(value);
+    bytes += value.size();
+    long offset = nextOffset++;
+    trim();
+    return offset;
+  }
+
+  private Chunk chunkFor(long offset) {
+    return chunks.get((int) ((offset - chunks.get(0).base) / chunkSize));
+  }
+
+  private void trim() {
+    int dropChunks = 0;
+    while (size() > 1
+           && ((maxRecords >= 0 && size() > maxRecords)
+               || (maxBytes >= 0 && bytes > maxBytes))) {
+      Chunk chunk = chunks.get(dropChunks);
+      bytes -= chunk.length((int) (firstOffset - chunk.base));
+      firstOffset++;
+      if (firstOffset == chunk.base + chunk.count && chunk.isFull()) {
+        dropChunks++;
+      }
+    }
+    if (dropChunks > 0) {
+      chunks.subList(0, dropChunks).clear();
+    }
+  }
+
+  /** Read up to `limit` records starting at `offset` (or the first retained
+   * record, if later). Reading stops early after `byteLimit` bytes, but always
+   * includes at least one record if any are available. **/
+  public List<ByteString> read(long offset, int limit, long byteLimit) {
+    List<ByteString> out = new ArrayList<ByteString>();
+    long total = 0;
+    for (long i = Math.max(offset, firstOffset); i < nextOffset && out.size() < limit; i++) {
+      Chunk chunk = chunkFor(i);
+      int index = (int) (i - chunk.base);
+      total += chunk.length(index);
+      if (!out.isEmpty() && total > byteLimit) {
+        break;
+      }
+      out.add(chunk.get(index));
+    }
+    return out;
+  }
+}
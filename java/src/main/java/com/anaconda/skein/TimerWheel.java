@@ -0,0 +1,117 @@
+package com.anaconda.skein;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* A hashed timer wheel.
+ *
+ * Timers are hashed into a fixed number of buckets by their deadline tick,
+ * with timers more than one rotation away tracking the number of remaining
+ * rotations. Scheduling and cancelling are O(1), and advancing the wheel
+ * only touches the buckets for the elapsed ticks. Deadlines are rounded up
+ * to the next tick.
+ *
+ * Not thread-safe, callers must synchronize externally.
+ */
+public class TimerWheel<T> {
+
+  public static final class Timer<T> {
+    private final T value;
+    private final long deadline;
+    private long rounds;
+    private Timer<T> prev;
+    private Timer<T> next;
+
+    private Timer(T value, long deadline) {
+      this.value = value;
+      this.deadline = deadline;
+    }
+
+    public T getValue() { return value; }
+
+    public long getDeadline() { return deadline; }
+
+    public boolean isScheduled() { return prev != null; }
+  }
+
+  private final long tickMillis;
+  // Sentinel heads of circular doubly-linked lists, one per bucket
+  private final Timer<T>[] buckets;
+  // The next tick to be processed
+  private long currentTick;
+  private int size = 0;
+
+  @SuppressWarnings("unchecked")
+  public TimerWheel(int wheelSize, long tickMillis, long nowMillis) {
+    if (wheelSize <= 0 || tickMillis <= 0) {
+      throw new IllegalArgumentException("wheelSize and tickMillis must be positive");
+    }
+    this.tickMillis = tickMillis;
+    this.buckets = (Timer<T>[]) new Timer[wheelSize];
+    for (int i = 0; i < wheelSize; i++) {
+      Timer<T> head = new Timer<T>(null, 0);
+      head.prev = head;
+      head.next = head;
+      buckets[i] = head;
+    }
+    this.currentTick = nowMillis / tickMillis;
+  }
+
+  public int size() { return size; }
+
+  /** Schedule a value to expire at the given time. **/
+  public Timer<T> schedule(T value, long deadlineMillis) {
+    Timer<T> timer = new Timer<T>(value, deadlineMillis);
+    long tick = Math.max(currentTick, (deadlineMillis + tickMillis - 1) / tickMillis);
+    timer.rounds = (tick - currentTick) / buckets.length;
+    Timer<T> head = buckets[(int) (tick % buckets.length)];
+    timer.prev = head.prev;
+    timer.next = head;
+    head.prev.next = timer;
+    head.prev = timer;
+    size += 1;
+    return timer;
+  }
+
+  /** Cancel a timer. Does nothing if it already expired or was cancelled. **/
+  public void cancel(Timer<T> timer) {
+    if (timer.isScheduled()) {
+      unlink(timer);
+    }
+  }
+
+  private void unlink(Timer<T> timer) {
+    timer.prev.next = timer.next;
+    timer.next.prev = timer.prev;
+    timer.prev = null;
+    timer.next = null;
+    size -= 1;
+  }
+
+  /** Advance the wheel to the given time, returning all expired values in
+   * order of expiration tick. **/
+  public List<T> advance(long nowMillis) {
+    List<T> expired = new ArrayList<T>();
+    long lastTick = nowMillis / tickMillis;
+    // No need to walk through more than one full rotation of empty buckets
+    if (size == 0 && lastTick > currentTick) {
+      currentTick = lastTick;
+    }
+    while (currentTick <= lastTick) {
+      Timer<T> head = buckets[(int) (currentTick % buckets.length)];
+      Timer<T> timer = head.next;
+      while (timer != head) {
+        Timer<T> next = timer.next;
+        if (timer.rounds == 0) {
+          unlink(timer);
+          expired.add(timer.value);
+        } else {
+          timer.rounds -= 1;
+        }
+        timer = next;
+      }
+      currentTick += 1;
+    }
+    return expired;
+  }
+}
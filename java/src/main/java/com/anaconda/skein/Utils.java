@@ -71,6 +71,18 @@ public class Utils {
     }
   }
 
+  public static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    } else if (bytes < 1024 * 1024) {
+      return String.format("%.1f KiB", bytes / 1024.0);
+    } else if (bytes < 1024 * 1024 * 1024) {
+      return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+    } else {
+      return String.format("%.1f GiB", bytes / (1024.0 * 1024 * 1024));
+    }
+  }
+
   public static String formatRuntime(long delta) {
     long secs = delta / 1000;
     long hours = secs / (60 * 60);
@@ -0,0 +1,134 @@
+package com.anaconda.skein;
+
+import com.google.protobuf.ByteString;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Compresses large key-value store values with DEFLATE (zlib format).
+ *
+ * Values at least `threshold` bytes are compressed when stored, if doing so
+ * saves enough space to be worthwhile. Compressed values are marked with
+ * `KeyValue.compressed`, and are decompressed when served to clients that
+ * don't accept compressed values. Statistics on the compression ratio and
+ * CPU time spent are kept for reporting. Thread-safe.
+ */
+public class ValueCompressor {
+
+  // Only keep compressed values that are at most this fraction of the original
+  private static final double MAX_RATIO = 0.9;
+
+  private static final int MIN_CHUNK_SIZE = 1024;
+  private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+  private final int threshold;
+
+  private final AtomicLong numCompressed = new AtomicLong(0);
+  private final AtomicLong uncompressedBytes = new AtomicLong(0);
+  private final AtomicLong compressedBytes = new AtomicLong(0);
+  private final AtomicLong compressNanos = new AtomicLong(0);
+  private final AtomicLong numDecompressed = new AtomicLong(0);
+  private final AtomicLong decompressNanos = new AtomicLong(0);
+
+  /** Compress values at least `threshold` bytes. If negative, compression
+   * is disabled. **/
+  public ValueCompressor(int threshold) {
+    this.threshold = threshold;
+  }
+
+  public boolean isEnabled() { return threshold >= 0; }
+
+  /** Compress a value, returning null if it shouldn't be compressed. **/
+  public ByteString compress(ByteString value) {
+    if (threshold < 0 || value.isEmpty() || value.size() < threshold) {
+      return null;
+    }
+    long start = System.nanoTime();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    ByteString out;
+    try {
+      deflater.setInput(value.toByteArray());
+      deflater.finish();
+      ByteString.Output buffer = ByteString.newOutput(value.size() / 2);
+      // Small values may deflate to more than their size, the output is
+      // just written a chunk at a time
+      byte[] chunk = new byte[Math.max(MIN_CHUNK_SIZE, Math.min(value.size(), MAX_CHUNK_SIZE))];
+      while (!deflater.finished()) {
+        buffer.write(chunk, 0, deflater.deflate(chunk));
+      }
+      out = buffer.toByteString();
+    } finally {
+      deflater.end();
+    }
+    compressNanos.addAndGet(System.nanoTime() - start);
+    if (out.size() > value.size() * MAX_RATIO) {
+      return null;
+    }
+    numCompressed.incrementAndGet();
+    uncompressedBytes.addAndGet(value.size());
+    compressedBytes.addAndGet(out.size());
+    return out;
+  }
+
+  /** Decompress a value created by `compress`. **/
+  public ByteString decompress(ByteString value) {
+    long start = System.nanoTime();
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(value.toByteArray());
+      ByteString.Output buffer = ByteString.newOutput(value.size() * 2);
+      byte[] chunk = new byte[MAX_CHUNK_SIZE];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(chunk);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalStateException("Truncated compressed value");
+        }
+        buffer.write(chunk, 0, n);
+      }
+      return buffer.toByteString();
+    } catch (DataFormatException exc) {
+      throw new IllegalStateException("Invalid compressed value", exc);
+    } finally {
+      inflater.end();
+      numDecompressed.incrementAndGet();
+      decompressNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /** Return a key-value pair with its value decompressed. **/
+  public Msg.KeyValue decompress(Msg.KeyValue kv) {
+    if (!kv.getCompressed()) {
+      return kv;
+    }
+    return kv.toBuilder()
+             .setValue(decompress(kv.getValue()))
+             .setCompressed(false)
+             .build();
+  }
+
+  /** Prepare a key-value pair to be sent to a client. **/
+  public Msg.KeyValue forClient(Msg.KeyValue kv, boolean acceptCompressed) {
+    return acceptCompressed ? kv : decompress(kv);
+  }
+
+  /** The uncompressed value of a key-value pair. **/
+  public ByteString getValue(Msg.KeyValue kv) {
+    return kv.getCompressed() ? decompress(kv.getValue()) : kv.getValue();
+  }
+
+  public long getNumCompressed() { return numCompressed.get(); }
+
+  public long getNumDecompressed() { return numDecompressed.get(); }
+
+  /** The total size of compressed values, divided by their original size. **/
+  public double getRatio() {
+    long in = uncompressedBytes.get();
+    return in == 0 ? 1.0 : (double) compressedBytes.get() / in;
+  }
+
+  public long getCompressMillis() { return compressNanos.get() / 1000000; }
+
+  public long getDecompressMillis() { return decompressNanos.get() / 1000000; }
+}
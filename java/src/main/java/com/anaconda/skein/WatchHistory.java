@@ -0,0 +1,145 @@
+package com.anaconda.skein;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* A bounded history of recent key-value events, for resuming watches.
+ *
+ * Events are stored in a ring buffer in the order they happened, each
+ * stamped with the revision of the write that caused it. The oldest events
+ * are dropped once either the number of events or their total serialized
+ * size exceeds its limit. A watch may be resumed from any revision at or
+ * after the compacted revision, the latest revision that may be missing
+ * events.
+ *
+ * Not thread-safe, callers must synchronize externally.
+ */
+public class WatchHistory {
+
+  public static final class Event {
+    private final long revision;
+    private final boolean delete;
+    // For deletes, only the key is set
+    private final Msg.KeyValue kv;
+    // For deletes, the deleted value
+    private final Msg.KeyValue previous;
+
+    Event(long revision, boolean delete, Msg.KeyValue kv, Msg.KeyValue previous) {
+      this.revision = revision;
+      this.delete = delete;
+      this.kv = kv;
+      this.previous = previous;
+    }
+
+    public long getRevision() { return revision; }
+    public boolean isDelete() { return delete; }
+    public Msg.KeyValue getKeyValue() { return kv; }
+    public Msg.KeyValue getPrevious() { return previous; }
+
+    private int getSize() {
+      return delete ? previous.getSerializedSize() : kv.getSerializedSize();
+    }
+  }
+
+  private final Event[] events;
+  private final long maxBytes;
+  // The index of the oldest event
+  private int head = 0;
+  private int size = 0;
+  private long bytes = 0;
+  private long compactedRevision;
+
+  public WatchHistory(int maxEvents, long maxBytes, long revision) {
+    if (maxEvents <= 0) {
+      throw new IllegalArgumentException("maxEvents must be positive");
+    }
+    this.events = new Event[maxEvents];
+    this.maxBytes = maxBytes;
+    this.compactedRevision = revision;
+  }
+
+  public int size() { return size; }
+
+  /** The total serialized size of all events. **/
+  public long getBytes() { return bytes; }
+
+  /** Events from this revision or earlier may be missing. **/
+  public long getCompactedRevision() { return compactedRevision; }
+
+  /** Drop all events, starting over at a revision. **/
+  public void reset(long revision) {
+    while (size > 0) {
+      dropOldest();
+    }
+    compactedRevision = revision;
+  }
+
+  /** Record a put, the value should be stamped with its revision. **/
+  public void addPut(Msg.KeyValue kv) {
+    add(new Event(kv.getModRevision(), false, kv, null));
+  }
+
+  /** Record a delete of a value at a revision. **/
+  public void addDelete(long revision, Msg.KeyValue previous) {
+    add(new Event(revision, true,
+                  Msg.KeyValue.newBuilder().setKey(previous.getKey()).build(),
+                  previous));
+  }
+
+  private void add(Event event) {
+    if (size == events.length) {
+      dropOldest();
+    }
+    events[(head + size) % events.length] = event;
+    size++;
+    bytes += event.getSize();
+    // Always keep the latest event
+    while (bytes > maxBytes && size > 1) {
+      dropOldest();
+    }
+  }
+
+  private void dropOldest() {
+    Event event = events[head];
+    events[head] = null;
+    head = (head + 1) % events.length;
+    size--;
+    bytes -= event.getSize();
+    compactedRevision = Math.max(compactedRevision, event.revision);
+  }
+
+  private Event get(int index) {
+    return events[(head + index) % events.length];
+  }
+
+  /** All events after a revision for keys in [start, end), in order. A null
+   * or empty end indicates an open bound. Returns null if events after the
+   * revision may have been dropped. **/
+  public List<Event> read(long revision, String start, String end) {
+    if (revision < compactedRevision) {
+      return null;
+    }
+    // Revisions are nondecreasing, binary search for the first event after
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (get(mid).revision <= revision) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    boolean openEnd = end == null || end.isEmpty();
+    List<Event> out = new ArrayList<Event>();
+    for (int i = lo; i < size; i++) {
+      Event event = get(i);
+      String key = event.kv.getKey();
+      if ((start == null || key.compareTo(start) >= 0)
+          && (openEnd || key.compareTo(end) < 0)) {
+        out.add(event);
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,186 @@
+package com.anaconda.skein;
+
+import com.google.protobuf.CodedOutputStream;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.lite.ProtoLiteUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Serializes watch responses, encoding each event only once.
+ *
+ * A single write is usually sent to many watchers, as responses that differ
+ * only in their watch id but share the same event messages. Rather than
+ * encode every event again for each response, recently encoded events are
+ * cached by identity and reused, so sending to N watchers costs one encoding
+ * of the events plus N small headers. The output is identical to the default
+ * marshaller's.
+ *
+ * The cache is direct-mapped, a colliding event just replaces the previous
+ * one. Only small events are cached, for large ones the cost is dominated by
+ * copying the value, which happens either way.
+ */
+public class WatchResponseMarshaller implements MethodDescriptor.Marshaller<Msg.WatchResponse> {
+
+  private static final MethodDescriptor.Marshaller<Msg.WatchResponse> DEFAULT =
+      ProtoLiteUtils.marshaller(Msg.WatchResponse.getDefaultInstance());
+
+  private static final class Encoded {
+    private final Msg.KeyValue event;
+    private final byte[] data;
+
+    Encoded(Msg.KeyValue event, byte[] data) {
+      this.event = event;
+      this.data = data;
+    }
+  }
+
+  private final AtomicReferenceArray<Encoded> cache;
+  private final int mask;
+  private final int maxEventSize;
+
+  /** Cache up to `slots` (rounded up to a power of 2) events of at most
+   * `maxEventSize` bytes each. **/
+  public WatchResponseMarshaller(int slots, int maxEventSize) {
+    int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+    this.cache = new AtomicReferenceArray<Encoded>(size);
+    this.mask = size - 1;
+    this.maxEventSize = maxEventSize;
+  }
+
+  // The event encoded as an element of the `event` field
+  byte[] getEncoded(Msg.KeyValue event) {
+    int slot = System.identityHashCode(event) & mask;
+    Encoded cached = cache.get(slot);
+    if (cached != null && cached.event == event) {
+      return cached.data;
+    }
+    byte[] data = new byte[CodedOutputStream.computeMessageSize(
+        Msg.WatchResponse.EVENT_FIELD_NUMBER, event)];
+    CodedOutputStream output = CodedOutputStream.newInstance(data);
+    try {
+      output.writeMessage(Msg.WatchResponse.EVENT_FIELD_NUMBER, event);
+    } catch (IOException exc) {
+      // Writing to an array of the right size never fails
+      throw new IllegalStateException(exc);
+    }
+    cache.set(slot, new Encoded(event, data));
+    return data;
+  }
+
+  @Override
+  public InputStream stream(Msg.WatchResponse msg) {
+    if (msg.getEventCount() == 0) {
+      return DEFAULT.stream(msg);
+    }
+    int headerSize = 0;
+    if (msg.getTypeValue() != 0) {
+      headerSize += CodedOutputStream.computeEnumSize(
+          Msg.WatchResponse.TYPE_FIELD_NUMBER, msg.getTypeValue());
+    }
+    if (msg.getWatchId() != 0) {
+      headerSize += CodedOutputStream.computeInt32Size(
+          Msg.WatchResponse.WATCH_ID_FIELD_NUMBER, msg.getWatchId());
+    }
+    int size = headerSize;
+    byte[][] parts = new byte[msg.getEventCount() + 1][];
+    for (int i = 0; i < msg.getEventCount(); i++) {
+      Msg.KeyValue event = msg.getEvent(i);
+      if (event.getSerializedSize() > maxEventSize) {
+        return DEFAULT.stream(msg);
+      }
+      parts[i + 1] = getEncoded(event);
+      size += parts[i + 1].length;
+    }
+    // Anything besides the type, watch id and events is rare, let the
+    // default marshaller handle it.
+    if (size != msg.getSerializedSize()) {
+      return DEFAULT.stream(msg);
+    }
+    parts[0] = new byte[headerSize];
+    CodedOutputStream output = CodedOutputStream.newInstance(parts[0]);
+    try {
+      if (msg.getTypeValue() != 0) {
+        output.writeEnum(Msg.WatchResponse.TYPE_FIELD_NUMBER, msg.getTypeValue());
+      }
+      if (msg.getWatchId() != 0) {
+        output.writeInt32(Msg.WatchResponse.WATCH_ID_FIELD_NUMBER, msg.getWatchId());
+      }
+    } catch (IOException exc) {
+      throw new IllegalStateException(exc);
+    }
+    return new EncodedStream(parts, size);
+  }
+
+  @Override
+  public Msg.WatchResponse parse(InputStream stream) {
+    return DEFAULT.parse(stream);
+  }
+
+  // Written directly to the transport's buffers when possible
+  private static final class EncodedStream extends InputStream
+      implements KnownLength, Drainable {
+    private final byte[][] parts;
+    private final int size;
+    private InputStream partial;
+
+    EncodedStream(byte[][] parts, int size) {
+      this.parts = parts;
+      this.size = size;
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      if (partial != null) {
+        byte[] buf = new byte[8192];
+        int count = 0;
+        int n;
+        while ((n = partial.read(buf)) != -1) {
+          target.write(buf, 0, n);
+          count += n;
+        }
+        return count;
+      }
+      for (byte[] part : parts) {
+        target.write(part);
+      }
+      partial = new ByteArrayInputStream(new byte[0]);
+      return size;
+    }
+
+    // Only used if read as a plain stream
+    private InputStream partial() {
+      if (partial == null) {
+        byte[] data = new byte[size];
+        int offset = 0;
+        for (byte[] part : parts) {
+          System.arraycopy(part, 0, data, offset, part.length);
+          offset += part.length;
+        }
+        partial = new ByteArrayInputStream(data);
+      }
+      return partial;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return partial == null ? size : partial.available();
+    }
+
+    @Override
+    public int read() throws IOException {
+      return partial().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return partial().read(b, off, len);
+    }
+  }
+}
@@ -34,6 +34,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -76,7 +77,9 @@ public class WebUI {
                AtomicDouble totalMemory,
                AtomicInteger totalVcores,
                long startTimeMillis,
-               Map<String, Msg.KeyValue.Builder> keyValueStore,
+               KeyValueStore keyValueStore,
+               ValueCompressor valueCompressor,
+               QueueStats watchQueueStats,
                List<ServiceContext> services,
                Set<String> users,
                Configuration conf,
@@ -111,7 +114,8 @@ public class WebUI {
     final String protocol = WebAppUtils.getHttpSchemePrefix(conf);
     UIModel uiModel = new UIModel(appId, appName, user, amLogsAddress, hasDriver,
                                   progress, totalMemory, totalVcores, startTimeMillis,
-                                  keyValueStore, services, protocol);
+                                  keyValueStore, valueCompressor, watchQueueStats,
+                                  services, protocol);
     context.addServlet(
         new ServletHolder(new TemplateServlet(uiModel, "overview.mustache.html")),
         "/overview");
@@ -323,11 +327,14 @@ public class WebUI {
     int port = Integer.parseInt(args[0]);
 
     // Create a dummy key-value store
-    Map<String, Msg.KeyValue.Builder> kv = new TreeMap<String, Msg.KeyValue.Builder>();
-    kv.put("Key 1", Msg.KeyValue.newBuilder().setValue(ByteString.copyFromUtf8("Val 1")));
-    kv.put("Key 2", Msg.KeyValue.newBuilder().setValue(ByteString.copyFromUtf8("Val 2")));
-    kv.put("Key 3", Msg.KeyValue.newBuilder()
+    KeyValueStore kv = new KeyValueStore();
+    kv.put(Msg.KeyValue.newBuilder().setKey("Key 1")
+                       .setValue(ByteString.copyFromUtf8("Val 1")));
+    kv.put(Msg.KeyValue.newBuilder().setKey("Key 2")
+                       .setValue(ByteString.copyFromUtf8("Val 2")));
+    kv.put(Msg.KeyValue.newBuilder().setKey("Key 3")
                        .setValue(ByteString.copyFrom(new byte[] {(byte) 255})));
+    kv.commit();
     // Create a dummy services map
     String url = "https://dummyurl.html";
     List<ServiceContext> services = Lists.newArrayList();
@@ -381,6 +388,8 @@ public class WebUI {
                               new AtomicInteger(5),
                               now - (60 * 60 * 2 + 120) * 1000,
                               kv,
+                              new ValueCompressor(64 * 1024),
+                              new QueueStats(),
                               services,
                               null,
                               new YarnConfiguration(),
@@ -451,8 +460,12 @@ public class WebUI {
     private final AtomicInteger totalVcores;
     private final long startTimeMillis;
     private final List<ServiceContext> services;
-    private final Map<String, Msg.KeyValue.Builder> keyValueStore;
+    private final KeyValueStore keyValueStore;
+    private final ValueCompressor valueCompressor;
+    private final QueueStats watchQueueStats;
     public final String protocol;
+    // The rendered contents of the store, reused until the store is modified
+    private volatile KeyValueView keyValueView;
 
     public UIModel(String appId,
                    String appName,
@@ -463,7 +476,9 @@ public class WebUI {
                    AtomicDouble totalMemory,
                    AtomicInteger totalVcores,
                    long startTimeMillis,
-                   Map<String, Msg.KeyValue.Builder> keyValueStore,
+                   KeyValueStore keyValueStore,
+                   ValueCompressor valueCompressor,
+                   QueueStats watchQueueStats,
                    List<ServiceContext> services,
                    String protocol) {
       this.appId = appId;
@@ -476,6 +491,8 @@ public class WebUI {
       this.totalVcores = totalVcores;
       this.startTimeMillis = startTimeMillis;
       this.keyValueStore = keyValueStore;
+      this.valueCompressor = valueCompressor;
+      this.watchQueueStats = watchQueueStats;
       this.services = services;
       this.protocol = protocol;
     }
@@ -502,18 +519,64 @@ public class WebUI {
     }
 
     public List<Map.Entry<String, String>> kv() {
-      synchronized (keyValueStore) {
-        List<Map.Entry<String, String>> out =
-            Lists.newArrayListWithCapacity(keyValueStore.size());
-        for (Map.Entry<String, Msg.KeyValue.Builder> entry : keyValueStore.entrySet()) {
-          ByteString value = entry.getValue().getValue();
-          out.add(Maps.immutableEntry(entry.getKey(),
-                                      value.isValidUtf8()
-                                      ? value.toStringUtf8()
-                                      : "<binary value>"));
-        }
-        return out;
+      // Read from the latest committed snapshot, no need to lock the store
+      KeyValueStore.Snapshot snapshot = keyValueStore.snapshot();
+      KeyValueView view = keyValueView;
+      if (view != null && view.revision == snapshot.getRevision()) {
+        return view.entries;
       }
+      List<Map.Entry<String, String>> out =
+          Lists.newArrayListWithCapacity(snapshot.size());
+      for (Msg.KeyValue kv : snapshot.all()) {
+        ByteString value = valueCompressor.getValue(kv);
+        out.add(Maps.immutableEntry(kv.getKey(),
+                                    value.isValidUtf8()
+                                    ? value.toStringUtf8()
+                                    : "<binary value>"));
+      }
+      // Concurrent page loads may both render the same revision, either
+      // result can be kept.
+      view = new KeyValueView(snapshot.getRevision(), Collections.unmodifiableList(out));
+      keyValueView = view;
+      return view.entries;
+    }
+
+    public String kvUsage() {
+      long maxBytes = keyValueStore.getMaxBytes();
+      return Utils.formatBytes(keyValueStore.getCommittedBytes())
+          + (maxBytes < 0 ? "" : " of " + Utils.formatBytes(maxBytes));
+    }
+
+    public String kvCompression() {
+      if (!valueCompressor.isEnabled()) {
+        return "disabled";
+      }
+      return String.format("%d values, %.1f%% of original size, %d ms compressing, "
+                           + "%d ms decompressing",
+                           valueCompressor.getNumCompressed(),
+                           valueCompressor.getRatio() * 100,
+                           valueCompressor.getCompressMillis(),
+                           valueCompressor.getDecompressMillis());
+    }
+
+    public String kvWatchQueues() {
+      return String.format("%d events queued (peak %d), %d coalesced, %d canceled",
+                           watchQueueStats.getQueued(),
+                           watchQueueStats.getPeak(),
+                           watchQueueStats.getCoalesced(),
+                           watchQueueStats.getCanceled());
+    }
+
+    public List<Map.Entry<String, String>> kvServiceUsage() {
+      long maxBytes = keyValueStore.getMaxServiceBytes();
+      List<Map.Entry<String, String>> out = Lists.newArrayList();
+      for (Map.Entry<String, Long> entry
+           : new TreeMap<String, Long>(keyValueStore.getCommittedServiceBytes()).entrySet()) {
+        out.add(Maps.immutableEntry(entry.getKey(),
+                                    Utils.formatBytes(entry.getValue())
+                                    + (maxBytes < 0 ? "" : " of " + Utils.formatBytes(maxBytes))));
+      }
+      return out;
     }
 
     public List<Map.Entry<String, String>> pages() {
@@ -530,6 +593,16 @@ public class WebUI {
     }
   }
 
+  private static final class KeyValueView {
+    public final long revision;
+    public final List<Map.Entry<String, String>> entries;
+
+    KeyValueView(long revision, List<Map.Entry<String, String>> entries) {
+      this.revision = revision;
+      this.entries = entries;
+    }
+  }
+
   private static class TemplateServlet extends HttpServlet {
     private final Mustache template;
     private final UIModel uiModel;
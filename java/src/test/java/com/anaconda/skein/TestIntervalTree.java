@@ -9,9 +9,21 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
 @RunWith(Suite.class)
 @Suite.SuiteClasses({TestIntervalTree.TestQuery.class,
                      TestIntervalTree.TestRemove.class,
+                     TestIntervalTree.TestPoints.class,
+                     TestIntervalTree.TestQueryKeys.class,
                      TestIntervalTree.TestMisc.class})
 public class TestIntervalTree {
   public static class TestQuery {
@@ -153,6 +165,199 @@ public class TestIntervalTree {
     }
   }
 
+  public static class TestPoints {
+    @Test
+    public void testPoints() {
+      IntervalTree<Integer> it = new IntervalTree<Integer>();
+
+      int b1 = it.add("b", "b\u0000", 0);
+      int b2 = it.add("b", "b\u0000", 1);
+      it.add("d", "d\u0000", 2);
+      it.add("", "\u0000", 3);
+      it.add("a", "c", 4);
+      assertEquals(5, it.size());
+
+      // Single key intervals only contain their key
+      assertEquals(3, it.query("b").size());
+      assertEquals(1, it.query("bb").size());
+      assertEquals(1, it.query("d").size());
+      assertEquals(1, it.query("").size());
+      assertEquals(0, it.query("e").size());
+
+      // Range queries include single key intervals within the range
+      assertEquals(5, it.query(null, null).size());
+      assertEquals(3, it.query("b", "b").size());
+      assertEquals(4, it.query("a", "d").size());
+      assertEquals(1, it.query("ba", "bz").size());
+      assertEquals(1, it.query("d", null).size());
+      assertEquals(0, it.query("e", "d").size());
+
+      assertTrue(it.remove(b1));
+      assertEquals(2, it.query("b").size());
+      assertTrue(it.remove(b2));
+      assertFalse(it.remove(b2));
+      assertEquals(1, it.query("b").size());
+      assertEquals(3, it.size());
+    }
+  }
+
+  public static class TestQueryKeys {
+    private static String randomKey(Random rand) {
+      return rand.nextInt(10) == 0 ? null : String.valueOf((char) ('a' + rand.nextInt(20)));
+    }
+
+    private static boolean contains(String begin, String end, String key) {
+      return ((begin == null || begin.compareTo(key) <= 0)
+              && (end == null || end.isEmpty() || end.compareTo(key) > 0));
+    }
+
+    private static Set<Integer> ids(List<IntervalTree.Item<Integer>> items) {
+      Set<Integer> out = new HashSet<Integer>();
+      for (IntervalTree.Item<Integer> item : items) {
+        assertTrue(out.add(item.getId()));
+      }
+      return out;
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+      Random rand = new Random(1234);
+      IntervalTree<Integer> it = new IntervalTree<Integer>();
+      final Map<Integer, String[]> intervals = new HashMap<Integer, String[]>();
+      List<String> allKeys = new ArrayList<String>();
+      for (char c = 'a'; c < 'a' + 20; c++) {
+        allKeys.add(String.valueOf(c));
+      }
+
+      // Enough adds and removes to go through several rebuilds
+      for (int step = 0; step < 2000; step++) {
+        if (intervals.isEmpty() || rand.nextInt(3) != 0) {
+          String begin = randomKey(rand);
+          String end = rand.nextInt(4) == 0 && begin != null ? begin + "\u0000"
+                                                              : randomKey(rand);
+          intervals.put(it.add(begin, end, step), new String[] {begin, end});
+        } else {
+          List<Integer> ids = new ArrayList<Integer>(intervals.keySet());
+          int id = ids.get(rand.nextInt(ids.size()));
+          assertTrue(it.remove(id));
+          intervals.remove(id);
+        }
+        assertEquals(intervals.size(), it.size());
+
+        if (step % 20 != 0) {
+          continue;
+        }
+        for (String key : allKeys) {
+          Set<Integer> expected = new HashSet<Integer>();
+          for (Map.Entry<Integer, String[]> e : intervals.entrySet()) {
+            if (contains(e.getValue()[0], e.getValue()[1], key)) {
+              expected.add(e.getKey());
+            }
+          }
+          assertEquals(expected, ids(it.query(key)));
+        }
+
+        // Range queries, with an inclusive end
+        for (int i = 0; i < 10; i++) {
+          String lo = randomKey(rand);
+          String hi = randomKey(rand);
+          Set<Integer> expected = new HashSet<Integer>();
+          for (Map.Entry<Integer, String[]> e : intervals.entrySet()) {
+            String begin = e.getValue()[0] == null ? "" : e.getValue()[0];
+            String end = e.getValue()[1];
+            if ((hi == null || begin.compareTo(hi) <= 0)
+                && (end == null || end.isEmpty() || lo == null || end.compareTo(lo) > 0)) {
+              expected.add(e.getKey());
+            }
+          }
+          assertEquals(expected, ids(it.query(lo, hi)));
+        }
+
+        // A random sorted subset of keys
+        List<String> keys = new ArrayList<String>();
+        for (String key : allKeys) {
+          if (rand.nextBoolean()) {
+            keys.add(key);
+          }
+        }
+        final Map<Integer, List<String>> expected = new HashMap<Integer, List<String>>();
+        for (Map.Entry<Integer, String[]> e : intervals.entrySet()) {
+          List<String> subset = new ArrayList<String>();
+          for (String key : keys) {
+            if (contains(e.getValue()[0], e.getValue()[1], key)) {
+              subset.add(key);
+            }
+          }
+          if (!subset.isEmpty()) {
+            expected.put(e.getKey(), subset);
+          }
+        }
+        final Map<Integer, List<String>> actual = new HashMap<Integer, List<String>>();
+        final List<String> visitedKeys = keys;
+        it.queryKeys(keys, new IntervalTree.KeysVisitor<Integer>() {
+          public void visit(IntervalTree.Item<Integer> item, int start, int end) {
+            List<String> subset = actual.get(item.getId());
+            if (subset == null) {
+              subset = new ArrayList<String>();
+              actual.put(item.getId(), subset);
+            }
+            subset.addAll(visitedKeys.subList(start, end));
+          }
+        });
+        assertEquals(expected, actual);
+      }
+    }
+
+    @Test
+    public void testRemoveWhileVisiting() {
+      final IntervalTree<Integer> it = new IntervalTree<Integer>();
+      final List<Integer> ids = new ArrayList<Integer>();
+      for (int i = 0; i < 100; i++) {
+        ids.add(it.add("a", "z", i));
+        ids.add(it.add("m", "m\u0000", i));
+      }
+      final List<Integer> visited = new ArrayList<Integer>();
+      it.queryKeys(Arrays.asList("b", "m"), new IntervalTree.KeysVisitor<Integer>() {
+        public void visit(IntervalTree.Item<Integer> item, int start, int end) {
+          visited.add(item.getId());
+          // Removing everything stops later items from being visited
+          for (int id : ids) {
+            it.remove(id);
+          }
+        }
+      });
+      assertEquals(1, visited.size());
+      assertEquals(0, it.size());
+      assertEquals(Collections.<IntervalTree.Item<Integer>>emptyList(), it.query("m"));
+      assertEquals(0, it.query(null, null).size());
+    }
+
+    @Test
+    public void testVisitRemoveWhileVisiting() {
+      final IntervalTree<Integer> it = new IntervalTree<Integer>();
+      // Sorted, pending, and point intervals all containing "m"
+      for (int i = 0; i < 100; i++) {
+        it.add("a", "z", i);
+      }
+      it.query("m");
+      for (int i = 0; i < 4; i++) {
+        it.add("l", null, i);
+        it.add("m", "m\u0000", i);
+      }
+      final List<Integer> visited = new ArrayList<Integer>();
+      it.visit("m", new IntervalTree.Visitor<Integer>() {
+        public void visit(IntervalTree.Item<Integer> item) {
+          visited.add(item.getId());
+          assertTrue(it.remove(item.getId()));
+        }
+      });
+      assertEquals(108, visited.size());
+      assertEquals(108, new HashSet<Integer>(visited).size());
+      assertEquals(0, it.size());
+      assertEquals(0, it.query("m").size());
+    }
+  }
+
   public static class TestMisc {
     @Test
     public void testNullStringCompare() {
@@ -0,0 +1,148 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestKeyValueLog {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private FileSystem fs;
+  private Path dir;
+
+  @Before
+  public void setup() throws Exception {
+    fs = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+    dir = new Path(tmp.getRoot().getAbsolutePath(), "kv");
+  }
+
+  private static Msg.KeyValue.Builder kv(String key, String value) {
+    return Msg.KeyValue.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFromUtf8(value));
+  }
+
+  private static List<Msg.KeyValue> all(KeyValueStore store) {
+    List<Msg.KeyValue> out = new ArrayList<Msg.KeyValue>();
+    for (Msg.KeyValue kv : store.snapshot().all()) {
+      out.add(kv);
+    }
+    return out;
+  }
+
+  private List<String> files(String prefix) throws Exception {
+    List<String> out = new ArrayList<String>();
+    for (FileStatus status : fs.listStatus(dir)) {
+      if (status.getPath().getName().startsWith(prefix)) {
+        out.add(status.getPath().getName());
+      }
+    }
+    return out;
+  }
+
+  private void write(KeyValueStore store, KeyValueLog log, String key, String value) {
+    long revision;
+    synchronized (store) {
+      store.put(kv(key, value));
+      revision = store.commit();
+    }
+    log.sync(revision);
+  }
+
+  @Test
+  public void testRecover() throws Exception {
+    KeyValueStore store = new KeyValueStore();
+    KeyValueLog log = KeyValueLog.open(fs, dir, store, Long.MAX_VALUE);
+    write(store, log, "a", "1");
+    write(store, log, "b", "2");
+    write(store, log, "a", "3");
+    synchronized (store) {
+      // Net changes within a single commit
+      store.put(kv("c", "4"));
+      store.remove("b");
+      store.put(kv("d", "5"));
+      store.remove("d");
+      log.sync(store.commit());
+    }
+    log.close();
+
+    KeyValueStore recovered = new KeyValueStore();
+    KeyValueLog log2 = KeyValueLog.open(fs, dir, recovered, Long.MAX_VALUE);
+    assertEquals(4, recovered.snapshot().getRevision());
+    assertEquals(all(store), all(recovered));
+    assertEquals(1, recovered.snapshot().get("a").getCreateRevision());
+    assertEquals(3, recovered.snapshot().get("a").getModRevision());
+
+    // New writes continue from the recovered revision
+    write(recovered, log2, "e", "6");
+    assertEquals(5, recovered.snapshot().getRevision());
+    log2.close();
+
+    KeyValueStore recovered2 = new KeyValueStore();
+    KeyValueLog.open(fs, dir, recovered2, Long.MAX_VALUE).close();
+    assertEquals(all(recovered), all(recovered2));
+  }
+
+  @Test
+  public void testSnapshotCompaction() throws Exception {
+    KeyValueStore store = new KeyValueStore();
+    KeyValueLog log = KeyValueLog.open(fs, dir, store, 100);
+    for (int i = 0; i < 200; i++) {
+      write(store, log, "key" + (i % 20), Integer.toString(i));
+      log.awaitSnapshot();
+    }
+    log.close();
+
+    // Old segments and snapshots are cleaned up
+    assertEquals(1, files("snapshot-").size());
+    assertTrue(files("wal-").size() <= 2);
+
+    KeyValueStore recovered = new KeyValueStore();
+    KeyValueLog.open(fs, dir, recovered, 100).close();
+    assertEquals(200, recovered.snapshot().getRevision());
+    assertEquals(all(store), all(recovered));
+  }
+
+  @Test
+  public void testTruncatedEntry() throws Exception {
+    KeyValueStore store = new KeyValueStore();
+    KeyValueLog log = KeyValueLog.open(fs, dir, store, Long.MAX_VALUE);
+    write(store, log, "a", "1");
+    write(store, log, "b", "2");
+    log.close();
+
+    // Simulate a partially written final entry
+    String segment = new Path(dir, files("wal-").get(0)).toUri().getPath();
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.setLength(file.length() - 3);
+    file.close();
+
+    KeyValueStore recovered = new KeyValueStore();
+    log = KeyValueLog.open(fs, dir, recovered, Long.MAX_VALUE);
+    assertEquals(1, recovered.snapshot().getRevision());
+    assertNull(recovered.snapshot().get("b"));
+
+    // The next attempt sees writes made after the truncated entry
+    write(recovered, log, "c", "3");
+    log.close();
+    KeyValueStore recovered2 = new KeyValueStore();
+    KeyValueLog.open(fs, dir, recovered2, Long.MAX_VALUE).close();
+    assertEquals(all(recovered), all(recovered2));
+  }
+}
@@ -0,0 +1,274 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class TestKeyValueStore {
+  private static Msg.KeyValue.Builder kv(String key, String value) {
+    return Msg.KeyValue.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFromUtf8(value));
+  }
+
+  private static String value(Msg.KeyValue kv) {
+    return kv == null ? null : kv.getValue().toStringUtf8();
+  }
+
+  private static List<String> keys(Iterable<Msg.KeyValue> values) {
+    List<String> out = new ArrayList<String>();
+    for (Msg.KeyValue kv : values) {
+      out.add(kv.getKey());
+    }
+    return out;
+  }
+
+  @Test
+  public void testPutGetRemove() {
+    KeyValueStore store = new KeyValueStore();
+
+    assertEquals("1", value(store.put(kv("a", "1"))));
+    store.put(kv("b", "2"));
+    assertEquals("1", value(store.get("a")));
+    store.put(kv("a", "3"));
+    assertEquals("3", value(store.get("a")));
+    assertEquals(2, store.uncommittedSnapshot().size());
+
+    assertEquals("2", store.remove("b").getValue().toStringUtf8());
+    assertNull(store.remove("b"));
+    assertNull(store.get("b"));
+    assertEquals(1, store.uncommittedSnapshot().size());
+  }
+
+  @Test
+  public void testSnapshotIsolation() {
+    KeyValueStore store = new KeyValueStore();
+    store.put(kv("a", "1"));
+    store.commit();
+
+    KeyValueStore.Snapshot before = store.snapshot();
+    store.put(kv("b", "2"));
+    store.remove("a");
+
+    // Uncommitted writes are invisible to readers
+    assertEquals(Lists.newArrayList("a"), keys(store.snapshot().all()));
+    assertEquals(Lists.newArrayList("b"), keys(store.uncommittedSnapshot().all()));
+
+    store.commit();
+
+    // Old snapshots are unaffected by later commits
+    assertEquals(Lists.newArrayList("a"), keys(before.all()));
+    assertEquals(Lists.newArrayList("b"), keys(store.snapshot().all()));
+  }
+
+  @Test
+  public void testRange() {
+    KeyValueStore store = new KeyValueStore();
+    for (String key : new String[] {"d", "b", "a", "e", "c", "bb"}) {
+      store.put(kv(key, key));
+    }
+    store.commit();
+    KeyValueStore.Snapshot s = store.snapshot();
+
+    assertEquals(Lists.newArrayList("a", "b", "bb", "c", "d", "e"), keys(s.all()));
+    assertEquals(Lists.newArrayList("b", "bb", "c"), keys(s.range("b", "d")));
+    assertEquals(Lists.newArrayList("b", "bb"), keys(s.range("b", "c")));
+    assertEquals(Lists.newArrayList("a", "b"), keys(s.range(null, "ba")));
+    assertEquals(Lists.newArrayList("d", "e"), keys(s.range("cc", null)));
+    assertTrue(keys(s.range("d", "b")).isEmpty());
+    assertTrue(keys(s.range("f", null)).isEmpty());
+    assertTrue(keys(s.range("c", "c")).isEmpty());
+    assertTrue(keys(new KeyValueStore().snapshot().all()).isEmpty());
+
+    assertEquals(Lists.newArrayList("e", "d", "c", "bb", "b", "a"),
+                 keys(s.range(null, null, true)));
+    assertEquals(Lists.newArrayList("c", "bb", "b"), keys(s.range("b", "d", true)));
+    assertEquals(Lists.newArrayList("b", "a"), keys(s.range(null, "ba", true)));
+    assertEquals(Lists.newArrayList("e", "d"), keys(s.range("cc", null, true)));
+    assertTrue(keys(s.range("d", "b", true)).isEmpty());
+    assertTrue(keys(s.range(null, "a", true)).isEmpty());
+  }
+
+  @Test
+  public void testRandomizedAgainstTreeMap() {
+    Random rand = new Random(42);
+    KeyValueStore store = new KeyValueStore();
+    TreeMap<String, String> expected = new TreeMap<String, String>();
+
+    for (int i = 0; i < 5000; i++) {
+      String key = Integer.toString(rand.nextInt(500));
+      if (rand.nextInt(3) == 0) {
+        String prev = expected.remove(key);
+        assertEquals(prev, value(store.remove(key)));
+      } else {
+        String value = Integer.toString(i);
+        assertEquals(expected.get(key), value(store.get(key)));
+        expected.put(key, value);
+        store.put(kv(key, value));
+      }
+    }
+    store.commit();
+
+    KeyValueStore.Snapshot s = store.snapshot();
+    assertEquals(expected.size(), s.size());
+    List<String> values = new ArrayList<String>();
+    for (Msg.KeyValue kv : s.all()) {
+      values.add(value(kv));
+    }
+    assertEquals(new ArrayList<String>(expected.values()), values);
+    assertEquals(new ArrayList<String>(expected.subMap("2", "4").keySet()),
+                 keys(s.range("2", "4")));
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), value(s.get(entry.getKey())));
+    }
+
+    // Order statistics
+    List<String> sorted = new ArrayList<String>(expected.keySet());
+    for (int i = 0; i < sorted.size(); i++) {
+      assertEquals(sorted.get(i), s.select(i).getKey());
+      assertEquals(i, s.rank(sorted.get(i)));
+    }
+    for (int i = 0; i < 100; i++) {
+      String start = Integer.toString(rand.nextInt(500));
+      String end = Integer.toString(rand.nextInt(500));
+      int expectedCount = start.compareTo(end) > 0 ? 0 : expected.subMap(start, end).size();
+      assertEquals(expectedCount, s.count(start, end));
+      assertEquals(expected.headMap(end).size(), s.count(null, end));
+      assertEquals(expected.tailMap(start).size(), s.count(start, null));
+    }
+  }
+
+  @Test
+  public void testRankAndSelect() {
+    KeyValueStore store = new KeyValueStore();
+    for (String key : new String[] {"d", "b", "a", "e", "c"}) {
+      store.put(kv(key, key));
+    }
+    store.commit();
+    KeyValueStore.Snapshot s = store.snapshot();
+
+    assertEquals(0, s.rank("a"));
+    assertEquals(2, s.rank("bb"));
+    assertEquals(5, s.rank("z"));
+    assertEquals(5, s.rank(null));
+    assertEquals(3, s.count("b", "e"));
+    assertEquals(0, s.count("e", "b"));
+    assertEquals(5, s.count(null, null));
+    assertEquals("a", s.select(0).getKey());
+    assertEquals("e", s.select(4).getKey());
+    try {
+      s.select(5);
+      fail("Expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException exc) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testRevisions() {
+    KeyValueStore store = new KeyValueStore();
+    assertEquals(0, store.snapshot().getRevision());
+
+    store.put(kv("a", "1"));
+    store.put(kv("b", "1"));
+    assertEquals(1, store.commit());
+
+    Msg.KeyValue a = store.snapshot().get("a");
+    assertEquals(1, a.getCreateRevision());
+    assertEquals(1, a.getModRevision());
+
+    store.put(kv("a", "2"));
+    assertEquals(2, store.commit());
+    a = store.snapshot().get("a");
+    assertEquals(1, a.getCreateRevision());
+    assertEquals(2, a.getModRevision());
+
+    // Commits without changes don't bump the revision
+    store.remove("missing");
+    assertEquals(2, store.commit());
+
+    store.remove("b");
+    assertEquals(3, store.commit());
+
+    assertEquals(Lists.newArrayList("a", "b"), keys(store.snapshot(2).all()));
+    assertEquals("1", value(store.snapshot(1).get("a")));
+    assertEquals("2", value(store.snapshot(2).get("a")));
+    assertEquals(Lists.newArrayList("a"), keys(store.snapshot(3).all()));
+    assertTrue(keys(store.snapshot(0).all()).isEmpty());
+    assertNull(store.snapshot(4));
+  }
+
+  @Test
+  public void testHistoryBounds() {
+    // Bounded by number of revisions
+    KeyValueStore store = new KeyValueStore(3, Long.MAX_VALUE);
+    for (int i = 1; i <= 5; i++) {
+      store.put(kv("a", Integer.toString(i)));
+      store.commit();
+    }
+    assertEquals(3, store.getOldestRevision());
+    assertNull(store.snapshot(2));
+    assertEquals("3", value(store.snapshot(3).get("a")));
+    assertEquals("5", value(store.snapshot(5).get("a")));
+
+    // Bounded by bytes only reachable from old revisions
+    store = new KeyValueStore(100, Long.MAX_VALUE);
+    store.put(kv("a", "1"));
+    store.commit();
+    int size = store.snapshot().get("a").getSerializedSize();
+    store = new KeyValueStore(100, 2 * size);
+    for (int i = 1; i <= 5; i++) {
+      store.put(kv("a", Integer.toString(i)));
+      store.commit();
+    }
+    assertEquals(3, store.getOldestRevision());
+    assertNull(store.snapshot(2));
+    assertEquals("3", value(store.snapshot(3).get("a")));
+  }
+
+  @Test
+  public void testMemoryAccounting() {
+    KeyValueStore store = new KeyValueStore();
+    Msg.ContainerInstance owner =
+        Msg.ContainerInstance.newBuilder().setServiceName("svc").setInstance(0).build();
+
+    store.put(kv("a", "12345"));
+    store.put(kv("b", "1").setOwner(owner));
+    long a = KeyValueStore.estimateBytes("a", 5);
+    long b = KeyValueStore.estimateBytes("b", 1);
+    assertEquals(a + b, store.getBytes());
+    assertEquals(b, store.getBytes("svc"));
+    assertEquals(0, store.getBytes("other"));
+    // Readers only see usage as of the latest commit
+    assertEquals(0, store.getCommittedBytes());
+    store.commit();
+    assertEquals(a + b, store.getCommittedBytes());
+    assertEquals(b, (long) store.getCommittedServiceBytes().get("svc"));
+
+    // Overwriting replaces the previous usage
+    store.put(kv("b", "123").setOwner(owner));
+    b = KeyValueStore.estimateBytes("b", 3);
+    assertEquals(a + b, store.getBytes());
+    assertEquals(b, store.getBytes("svc"));
+
+    store.remove("b");
+    assertEquals(a, store.getBytes());
+    store.commit();
+    assertTrue(store.getCommittedServiceBytes().isEmpty());
+
+    store.remove("a");
+    assertEquals(0, store.getBytes());
+  }
+}
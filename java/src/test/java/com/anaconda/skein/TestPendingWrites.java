@@ -0,0 +1,189 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestPendingWrites {
+  private static Msg.KeyValue kv(String key, String value) {
+    return Msg.KeyValue.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFromUtf8(value))
+        .build();
+  }
+
+  private static Msg.OpRequest increment(String key, long delta) {
+    return Msg.OpRequest.newBuilder()
+        .setIncrement(Msg.IncrementRequest.newBuilder().setKey(key).setDelta(delta))
+        .build();
+  }
+
+  private static Msg.OpRequest append(String key, String value) {
+    return Msg.OpRequest.newBuilder()
+        .setAppend(Msg.AppendRequest.newBuilder()
+                   .setKey(key)
+                   .setValue(ByteString.copyFromUtf8(value)))
+        .build();
+  }
+
+  private static final class CapturedError implements StreamObserver<Object> {
+    private Status status;
+
+    public void onNext(Object value) { }
+
+    public void onError(Throwable t) { status = Status.fromThrowable(t); }
+
+    public void onCompleted() { }
+  }
+
+  // Apply an increment or append as validating a transaction would
+  private static String update(PendingWrites writes, Msg.OpRequest op, CapturedError error) {
+    Msg.PutKeyRequest put = writes.update(op, error);
+    if (put == null) {
+      return null;
+    }
+    writes.put(kv(put.getKey(), put.getValue().toStringUtf8()));
+    return put.getValue().toStringUtf8();
+  }
+
+  @Test
+  public void testUpdateSeesEarlierWrites() {
+    KeyValueStore store = new KeyValueStore();
+    store.put(kv("count", "1").toBuilder());
+    store.commit();
+    PendingWrites writes = new PendingWrites(store, new ValueCompressor(-1));
+    CapturedError error = new CapturedError();
+
+    assertEquals("3", update(writes, increment("count", 2), error));
+    assertEquals("4", update(writes, increment("count", 1), error));
+    // Nothing is applied to the store
+    assertEquals("1", store.get("count").getValue().toStringUtf8());
+
+    // A put of a non-integer makes a later increment invalid
+    writes.put(kv("count", "abc"));
+    assertNull(update(writes, increment("count", 1), error));
+    assertEquals(Status.Code.INVALID_ARGUMENT, error.status.getCode());
+    assertEquals("abcd", update(writes, append("count", "d"), error));
+
+    // Deleted keys start over
+    writes.removeRange("c", "d");
+    assertNull(writes.get("count"));
+    assertEquals("5", update(writes, increment("count", 5), error));
+
+    // Updates are applied in the order they were validated
+    assertEquals("3", writes.nextUpdate().getValue().toStringUtf8());
+    assertEquals("4", writes.nextUpdate().getValue().toStringUtf8());
+    assertEquals("abcd", writes.nextUpdate().getValue().toStringUtf8());
+    assertEquals("5", writes.nextUpdate().getValue().toStringUtf8());
+  }
+
+  @Test
+  public void testRemoveRange() {
+    KeyValueStore store = new KeyValueStore();
+    for (String key : new String[] {"a", "b", "c", "d"}) {
+      store.put(kv(key, key).toBuilder());
+    }
+    PendingWrites writes = new PendingWrites(store, new ValueCompressor(-1));
+    writes.put(kv("bb", "bb"));
+    writes.put(kv("e", "e"));
+
+    writes.removeRange("b", "d");
+    assertEquals("a", writes.get("a").getValue().toStringUtf8());
+    assertNull(writes.get("b"));
+    assertNull(writes.get("bb"));
+    assertNull(writes.get("c"));
+    assertEquals("d", writes.get("d").getValue().toStringUtf8());
+
+    writes.removeRange("d", null);
+    assertNull(writes.get("d"));
+    assertNull(writes.get("e"));
+    writes.removeRange(null, null);
+    assertNull(writes.get("a"));
+    // The store itself is unchanged
+    assertEquals(4, store.uncommittedSnapshot().size());
+  }
+
+  @Test
+  public void testBytes() {
+    KeyValueStore store = new KeyValueStore();
+    Msg.ContainerInstance owner = Msg.ContainerInstance.newBuilder()
+        .setServiceName("service")
+        .setInstance(0)
+        .build();
+    store.put(kv("a", "a").toBuilder().setOwner(owner));
+    long used = store.getBytes();
+    PendingWrites writes = new PendingWrites(store, new ValueCompressor(-1));
+
+    // Earlier writes count towards the usage seen by later ones
+    Msg.KeyValue first = kv("b", "bb").toBuilder().setOwner(owner).build();
+    writes.put(first);
+    writes.put(kv("c", "cc"));
+    long size = KeyValueStore.estimateBytes(first);
+    assertEquals(used + 2 * size, writes.getBytes());
+    assertEquals(used + size, writes.getBytes("service"));
+
+    // Overwriting replaces the previous value's usage
+    writes.put(kv("b", "bbbb"));
+    assertEquals(used + 2 * size + 2, writes.getBytes());
+    assertEquals(used, writes.getBytes("service"));
+
+    writes.removeRange(null, null);
+    assertEquals(0, writes.getBytes());
+    assertEquals(0, writes.getBytes("service"));
+    assertEquals(used, store.getBytes());
+  }
+
+  @Test
+  public void testPrepareValue() {
+    PendingWrites writes = new PendingWrites(new KeyValueStore(), new ValueCompressor(100));
+    ByteString small = ByteString.copyFromUtf8("small");
+    assertSame(small, writes.prepareValue(small));
+
+    StringBuilder builder = new StringBuilder();
+    while (builder.length() < 1000) {
+      builder.append("repetitive ");
+    }
+    ByteString large = ByteString.copyFromUtf8(builder.toString());
+    ByteString prepared = writes.prepareValue(large);
+    assertNotSame(large, prepared);
+    assertTrue(prepared.size() < large.size());
+    // Only compressed once
+    assertSame(prepared, writes.prepareValue(large));
+  }
+
+  @Test
+  public void testPrepareValues() {
+    ValueCompressor compressor = new ValueCompressor(100);
+    KeyValueStore store = new KeyValueStore();
+    PendingWrites writes = new PendingWrites(store, compressor);
+    StringBuilder builder = new StringBuilder();
+    while (builder.length() < 1000) {
+      builder.append("repetitive ");
+    }
+    ByteString large = ByteString.copyFromUtf8(builder.toString());
+    writes.prepareValues(Arrays.asList(
+        Msg.OpRequest.newBuilder()
+           .setPutKey(Msg.PutKeyRequest.newBuilder().setKey("a").setValue(large))
+           .build(),
+        append("b", "b")));
+    assertEquals(1, compressor.getNumCompressed());
+
+    // Prepared values outlive the writes
+    writes.put(kv("c", "c"));
+    writes.clear();
+    assertNull(writes.get("c"));
+    assertEquals(store.getBytes(), writes.getBytes());
+    writes.prepareValue(large);
+    assertEquals(1, compressor.getNumCompressed());
+  }
+}
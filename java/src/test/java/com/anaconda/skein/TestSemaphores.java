@@ -0,0 +1,78 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestSemaphores {
+  @Test
+  public void testLockHandoff() {
+    Semaphores<String> sems = new Semaphores<String>();
+    assertTrue(sems.acquire("lock", 1, "a"));
+    assertFalse(sems.acquire("lock", 1, "b"));
+    assertFalse(sems.acquire("lock", 1, "c"));
+    assertEquals(1, sems.numHolders("lock"));
+    assertEquals(2, sems.numWaiters("lock"));
+
+    // Released permits go to waiters in order, one at a time
+    assertEquals("b", sems.release("lock", "a"));
+    assertTrue(sems.isHolding("lock", "b"));
+    assertFalse(sems.isHolding("lock", "c"));
+    assertEquals("c", sems.release("lock", "b"));
+    assertNull(sems.release("lock", "c"));
+
+    // Unused semaphores are removed
+    assertEquals(0, sems.size());
+    assertEquals(0, sems.getPermits("lock"));
+  }
+
+  @Test
+  public void testSemaphore() {
+    Semaphores<String> sems = new Semaphores<String>();
+    assertTrue(sems.acquire("sem", 2, "a"));
+    assertTrue(sems.acquire("sem", 2, "b"));
+    assertFalse(sems.acquire("sem", 2, "c"));
+    assertFalse(sems.tryAcquire("sem", 2, "d"));
+    assertEquals(2, sems.getPermits("sem"));
+
+    // Leaving the queue doesn't grant anything
+    assertNull(sems.release("sem", "c"));
+    assertEquals(0, sems.numWaiters("sem"));
+    assertNull(sems.release("sem", "a"));
+    assertTrue(sems.tryAcquire("sem", 2, "d"));
+    assertEquals(2, sems.numHolders("sem"));
+
+    // Releasing something not held does nothing
+    assertNull(sems.release("sem", "missing"));
+    assertNull(sems.release("missing", "a"));
+    assertEquals(2, sems.numHolders("sem"));
+  }
+
+  @Test
+  public void testNoBarging() {
+    Semaphores<String> sems = new Semaphores<String>();
+    assertTrue(sems.acquire("sem", 2, "a"));
+    assertTrue(sems.acquire("sem", 2, "b"));
+    assertFalse(sems.acquire("sem", 2, "c"));
+    assertEquals("c", sems.release("sem", "a"));
+    // The freed permit went to the waiter, not a new caller
+    assertFalse(sems.tryAcquire("sem", 2, "d"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPermitsMismatch() {
+    Semaphores<String> sems = new Semaphores<String>();
+    sems.acquire("sem", 2, "a");
+    sems.acquire("sem", 3, "b");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateHolder() {
+    Semaphores<String> sems = new Semaphores<String>();
+    sems.acquire("lock", 1, "a");
+    sems.acquire("lock", 1, "a");
+  }
+}
@@ -0,0 +1,80 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class TestStreamLog {
+  private static ByteString record(long i) {
+    return ByteString.copyFromUtf8("record-" + i);
+  }
+
+  @Test
+  public void testAppendAndRead() {
+    StreamLog log = new StreamLog(4);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, log.append(record(i)));
+    }
+    assertEquals(0, log.getFirstOffset());
+    assertEquals(10, log.getNextOffset());
+    assertEquals(10, log.size());
+
+    // Reads span chunk boundaries
+    List<ByteString> out = log.read(3, 5, Long.MAX_VALUE);
+    assertEquals(5, out.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(record(3 + i), out.get(i));
+    }
+    // Independent readers can replay from any offset
+    assertEquals(record(0), log.read(0, 1, Long.MAX_VALUE).get(0));
+    assertEquals(2, log.read(8, 100, Long.MAX_VALUE).size());
+    assertTrue(log.read(10, 100, Long.MAX_VALUE).isEmpty());
+  }
+
+  @Test
+  public void testReadMaxBytes() {
+    StreamLog log = new StreamLog(4);
+    log.append(ByteString.copyFrom(new byte[100]));
+    log.append(ByteString.copyFrom(new byte[100]));
+    log.append(ByteString.copyFrom(new byte[100]));
+    assertEquals(2, log.read(0, 100, 250).size());
+    // At least one record is always returned
+    assertEquals(1, log.read(0, 100, 10).size());
+  }
+
+  @Test
+  public void testRetention() {
+    StreamLog log = new StreamLog(4);
+    log.setRetention(5, -1);
+    for (int i = 0; i < 22; i++) {
+      log.append(record(i));
+    }
+    assertEquals(17, log.getFirstOffset());
+    assertEquals(5, log.size());
+    // Reads before the first retained record start there instead
+    List<ByteString> out = log.read(0, 100, Long.MAX_VALUE);
+    assertEquals(5, out.size());
+    assertEquals(record(17), out.get(0));
+    assertEquals(record(21), out.get(4));
+
+    long bytes = 0;
+    for (long i = 19; i < 22; i++) {
+      bytes += record(i).size();
+    }
+    log.setRetention(-1, bytes);
+    assertEquals(19, log.getFirstOffset());
+    assertEquals(bytes, log.getBytes());
+
+    // The latest record is always kept
+    log.setRetention(0, 0);
+    assertEquals(1, log.size());
+    assertEquals(record(21), log.read(0, 100, Long.MAX_VALUE).get(0));
+    assertEquals(22, log.append(record(22)));
+    assertEquals(record(22), log.read(0, 100, Long.MAX_VALUE).get(0));
+  }
+}
@@ -0,0 +1,83 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TestTimerWheel {
+  @Test
+  public void testExpiration() {
+    TimerWheel<String> wheel = new TimerWheel<String>(8, 10, 1000);
+    wheel.schedule("a", 1025);
+    wheel.schedule("b", 1010);
+    wheel.schedule("c", 1030);
+    wheel.schedule("past", 500);
+    assertEquals(4, wheel.size());
+
+    assertEquals(Lists.newArrayList("past"), wheel.advance(1005));
+    // Deadlines round up to the next tick
+    assertEquals(Lists.newArrayList("b"), wheel.advance(1020));
+    assertEquals(Lists.newArrayList("a", "c"), wheel.advance(1030));
+    assertTrue(wheel.advance(2000).isEmpty());
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testMultipleRotations() {
+    TimerWheel<String> wheel = new TimerWheel<String>(4, 10, 0);
+    wheel.schedule("far", 105);
+    wheel.schedule("near", 20);
+    assertEquals(Lists.newArrayList("near"), wheel.advance(100));
+    assertTrue(wheel.advance(105).isEmpty());
+    assertEquals(Lists.newArrayList("far"), wheel.advance(110));
+  }
+
+  @Test
+  public void testCancel() {
+    TimerWheel<String> wheel = new TimerWheel<String>(8, 10, 0);
+    TimerWheel.Timer<String> a = wheel.schedule("a", 50);
+    TimerWheel.Timer<String> b = wheel.schedule("b", 50);
+    assertTrue(a.isScheduled());
+    wheel.cancel(a);
+    wheel.cancel(a);
+    assertFalse(a.isScheduled());
+    assertEquals(1, wheel.size());
+    assertEquals(Lists.newArrayList("b"), wheel.advance(50));
+    assertFalse(b.isScheduled());
+    wheel.cancel(b);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testRandomized() {
+    Random rand = new Random(42);
+    TimerWheel<Long> wheel = new TimerWheel<Long>(16, 10, 0);
+    List<TimerWheel.Timer<Long>> timers = new ArrayList<TimerWheel.Timer<Long>>();
+    for (int i = 0; i < 1000; i++) {
+      long deadline = rand.nextInt(2000);
+      timers.add(wheel.schedule(deadline, deadline));
+    }
+    for (int i = 0; i < 100; i++) {
+      wheel.cancel(timers.get(rand.nextInt(timers.size())));
+    }
+    int remaining = wheel.size();
+    int expired = 0;
+    for (long now = 0; now <= 2000; now += rand.nextInt(50)) {
+      for (long deadline : wheel.advance(now)) {
+        assertTrue(deadline <= now);
+        assertTrue(deadline > now - 60);
+        expired += 1;
+      }
+    }
+    expired += wheel.advance(2010).size();
+    assertEquals(remaining, expired);
+  }
+}
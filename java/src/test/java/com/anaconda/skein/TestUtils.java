@@ -27,4 +27,12 @@ public class TestUtils {
                                  Lists.newArrayList("c", "d")),
                  "a,b c,d");
   }
+
+  @Test
+  public void testFormatBytes() {
+    assertEquals("10 B", Utils.formatBytes(10));
+    assertEquals("1.5 KiB", Utils.formatBytes(1536));
+    assertEquals("2.0 MiB", Utils.formatBytes(2 * 1024 * 1024));
+    assertEquals("3.0 GiB", Utils.formatBytes(3L * 1024 * 1024 * 1024));
+  }
 }
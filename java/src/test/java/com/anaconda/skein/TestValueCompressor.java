@@ -0,0 +1,89 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class TestValueCompressor {
+  private static ByteString repetitive(int size) {
+    StringBuilder builder = new StringBuilder(size);
+    while (builder.length() < size) {
+      builder.append("{\"key\": \"value\", \"count\": ")
+             .append(builder.length() % 97)
+             .append("}\n");
+    }
+    return ByteString.copyFromUtf8(builder.substring(0, size));
+  }
+
+  @Test
+  public void testRoundtrip() {
+    ValueCompressor compressor = new ValueCompressor(1024);
+    ByteString value = repetitive(100000);
+    ByteString compressed = compressor.compress(value);
+    assertTrue(compressed.size() < value.size() / 2);
+    assertEquals(value, compressor.decompress(compressed));
+
+    assertEquals(1, compressor.getNumCompressed());
+    assertEquals(1, compressor.getNumDecompressed());
+    assertEquals((double) compressed.size() / value.size(), compressor.getRatio(), 1e-9);
+
+    Msg.KeyValue kv = Msg.KeyValue.newBuilder()
+        .setKey("key")
+        .setValue(compressed)
+        .setCompressed(true)
+        .build();
+    Msg.KeyValue decompressed = compressor.forClient(kv, false);
+    assertEquals(value, decompressed.getValue());
+    assertFalse(decompressed.getCompressed());
+    assertSame(kv, compressor.forClient(kv, true));
+    assertEquals(value, compressor.getValue(kv));
+  }
+
+  @Test
+  public void testBelowThreshold() {
+    ValueCompressor compressor = new ValueCompressor(1024);
+    assertNull(compressor.compress(repetitive(1023)));
+    assertTrue(compressor.compress(repetitive(1024)) != null);
+
+    Msg.KeyValue kv = Msg.KeyValue.newBuilder()
+        .setKey("key")
+        .setValue(repetitive(10))
+        .build();
+    assertSame(kv, compressor.decompress(kv));
+    assertEquals(1.0, new ValueCompressor(0).getRatio(), 0);
+  }
+
+  @Test
+  public void testIncompressible() {
+    ValueCompressor compressor = new ValueCompressor(1024);
+    byte[] bytes = new byte[100000];
+    new Random(42).nextBytes(bytes);
+    assertNull(compressor.compress(ByteString.copyFrom(bytes)));
+    assertEquals(0, compressor.getNumCompressed());
+  }
+
+  @Test
+  public void testDisabled() {
+    ValueCompressor compressor = new ValueCompressor(-1);
+    assertFalse(compressor.isEnabled());
+    assertNull(compressor.compress(repetitive(100000)));
+  }
+
+  @Test(timeout = 10000)
+  public void testZeroThreshold() {
+    ValueCompressor compressor = new ValueCompressor(0);
+    assertNull(compressor.compress(ByteString.EMPTY));
+    // Tiny values deflate to more than their size
+    assertNull(compressor.compress(ByteString.copyFromUtf8("a")));
+    ByteString value = repetitive(100);
+    assertEquals(value, compressor.decompress(compressor.compress(value)));
+  }
+}
@@ -0,0 +1,77 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class TestWatchHistory {
+  private static Msg.KeyValue put(String key, long revision) {
+    return Msg.KeyValue.newBuilder().setKey(key).setModRevision(revision).build();
+  }
+
+  @Test
+  public void testRead() {
+    WatchHistory history = new WatchHistory(100, Long.MAX_VALUE, 10);
+    history.addPut(put("a", 11));
+    history.addPut(put("b", 11));
+    history.addDelete(12, put("a", 11));
+    history.addPut(put("c", 13));
+    assertEquals(4, history.size());
+
+    List<WatchHistory.Event> events = history.read(10, "", null);
+    assertEquals(4, events.size());
+    assertFalse(events.get(0).isDelete());
+    assertTrue(events.get(2).isDelete());
+    assertEquals("a", events.get(2).getKeyValue().getKey());
+    // Deletes only have the key, along with the deleted value
+    assertEquals(0, events.get(2).getKeyValue().getModRevision());
+    assertEquals(11, events.get(2).getPrevious().getModRevision());
+    assertEquals(12, events.get(2).getRevision());
+
+    // Only events after the revision, within the range
+    assertEquals(2, history.read(11, "", "").size());
+    assertEquals(1, history.read(10, "b", "c").size());
+    assertEquals(2, history.read(10, "a", "a\u0000").size());
+    assertTrue(history.read(13, "", null).isEmpty());
+    // Resuming from the future just waits for new events
+    assertTrue(history.read(20, "", null).isEmpty());
+
+    // Events from before the history started are unavailable
+    assertNull(history.read(9, "", null));
+  }
+
+  @Test
+  public void testCompaction() {
+    WatchHistory history = new WatchHistory(3, Long.MAX_VALUE, 0);
+    for (long i = 1; i <= 5; i++) {
+      history.addPut(put("key", i));
+    }
+    assertEquals(3, history.size());
+    assertEquals(2, history.getCompactedRevision());
+    assertNull(history.read(1, "", null));
+    assertEquals(3, history.read(2, "", null).size());
+
+    // Bounded by size, always keeping the latest event
+    long size = put("key", 6).getSerializedSize();
+    history = new WatchHistory(100, 2 * size, 0);
+    for (long i = 1; i <= 5; i++) {
+      history.addPut(put("key", i));
+    }
+    assertEquals(2, history.size());
+    assertEquals(3, history.getCompactedRevision());
+    history = new WatchHistory(100, 0, 0);
+    history.addPut(put("key", 1));
+    assertEquals(1, history.size());
+
+    history.reset(7);
+    assertEquals(0, history.size());
+    assertEquals(0, history.getBytes());
+    assertNull(history.read(6, "", null));
+    assertTrue(history.read(7, "", null).isEmpty());
+  }
+}
@@ -0,0 +1,163 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TestWatchOverflow {
+  // A master with a watch queue of 10 events and the cancel overflow policy
+  private static ApplicationMaster.AppMasterImpl newAppMaster() {
+    Configuration conf = new Configuration(false);
+    conf.setInt("skein.kv.watch.queue-size", 10);
+    conf.set("skein.kv.watch.overflow-policy", "cancel");
+    return new ApplicationMaster(conf).new AppMasterImpl();
+  }
+
+  // A watch stream whose client can stop being ready, so responses queue up
+  private static final class WatchClient extends ServerCallStreamObserver<Msg.WatchResponse> {
+    private final BlockingQueue<Msg.WatchResponse> received =
+        new LinkedBlockingQueue<Msg.WatchResponse>();
+    private volatile boolean ready = true;
+    private Runnable onReady;
+
+    void setReady(boolean ready) {
+      this.ready = ready;
+      if (ready) {
+        onReady.run();
+      }
+    }
+
+    Msg.WatchResponse take() throws InterruptedException {
+      Msg.WatchResponse msg = received.poll(10, TimeUnit.SECONDS);
+      assertNotNull("Timed out waiting for a watch response", msg);
+      return msg;
+    }
+
+    public void onNext(Msg.WatchResponse msg) { received.add(msg); }
+
+    public void onError(Throwable t) { throw new AssertionError(t); }
+
+    public void onCompleted() { }
+
+    public boolean isReady() { return ready; }
+
+    public void setOnReadyHandler(Runnable handler) { onReady = handler; }
+
+    public boolean isCancelled() { return false; }
+
+    public void setOnCancelHandler(Runnable handler) { }
+
+    public void setCompression(String compression) { }
+
+    public void disableAutoInboundFlowControl() { }
+
+    public void request(int count) { }
+
+    public void setMessageCompression(boolean enable) { }
+  }
+
+  private static final class Ignore<T> implements StreamObserver<T> {
+    public void onNext(T value) { }
+
+    public void onError(Throwable t) { throw new AssertionError(t); }
+
+    public void onCompleted() { }
+  }
+
+  private static Msg.WatchRequest create(String start, String end) {
+    return Msg.WatchRequest.newBuilder()
+        .setCreate(Msg.WatchCreateRequest.newBuilder().setStart(start).setEnd(end))
+        .build();
+  }
+
+  private static Msg.PutKeyRequest put(String key) {
+    return Msg.PutKeyRequest.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFromUtf8("value"))
+        .build();
+  }
+
+  @Test
+  public void testNoEventsAfterCancel() throws Exception {
+    ApplicationMaster.AppMasterImpl impl = newAppMaster();
+    WatchClient client = new WatchClient();
+    StreamObserver<Msg.WatchRequest> stream = impl.watch(client);
+    stream.onNext(create("key", "kez"));
+    // Canceled once all events are queued, marking the end of the responses
+    stream.onNext(create("other", "other\u0000"));
+    int watchId = client.take().getWatchId();
+    int otherId = client.take().getWatchId();
+    client.setReady(false);
+
+    // Fill the queue, without overflowing it
+    for (int i = 0; i < 10; i++) {
+      impl.putKey(put("key" + i), new Ignore<Msg.PutKeyResponse>());
+    }
+
+    // The put overflows the queue once the delete starts, canceling the watch
+    // with events for the rest of the delete still to be queued.
+    impl.transaction(
+        Msg.TransactionRequest.newBuilder()
+            .addOnSuccess(Msg.OpRequest.newBuilder().setPutKey(put("key-new")))
+            .addOnSuccess(Msg.OpRequest.newBuilder().setDeleteRange(
+                Msg.DeleteRangeRequest.newBuilder().setStart("key").setEnd("kez")))
+            .build(),
+        new Ignore<Msg.TransactionResponse>());
+
+    stream.onNext(Msg.WatchRequest.newBuilder()
+        .setCancel(Msg.WatchCancelRequest.newBuilder().setWatchId(otherId))
+        .build());
+    client.setReady(true);
+
+    List<Msg.WatchResponse> responses = new ArrayList<Msg.WatchResponse>();
+    while (true) {
+      Msg.WatchResponse msg = client.take();
+      if (msg.getWatchId() == otherId) {
+        assertEquals(Msg.WatchResponse.Type.CANCEL, msg.getType());
+        break;
+      }
+      responses.add(msg);
+    }
+    // The lagging watch's queued events are dropped, and nothing follows
+    // the cancel
+    assertEquals(1, responses.size());
+    assertEquals(watchId, responses.get(0).getWatchId());
+    assertEquals(Msg.WatchResponse.Type.CANCEL, responses.get(0).getType());
+  }
+
+  @Test
+  public void testBatchCappedAtQueueSize() throws Exception {
+    ApplicationMaster.AppMasterImpl impl = newAppMaster();
+    WatchClient client = new WatchClient();
+    StreamObserver<Msg.WatchRequest> stream = impl.watch(client);
+    stream.onNext(Msg.WatchRequest.newBuilder()
+        .setCreate(Msg.WatchCreateRequest.newBuilder()
+                   .setStart("key")
+                   .setEnd("kez")
+                   .setBatchWindow(Long.MAX_VALUE)
+                   .setBatchSize(Integer.MAX_VALUE))
+        .build());
+    assertEquals(Msg.WatchResponse.Type.CREATE, client.take().getType());
+
+    // The batch is sent once it holds a full queue's worth of events, rather
+    // than held until the window closes
+    for (int i = 0; i < 10; i++) {
+      impl.putKey(put("key" + i), new Ignore<Msg.PutKeyResponse>());
+    }
+    Msg.WatchResponse msg = client.take();
+    assertEquals(Msg.WatchResponse.Type.PUT, msg.getType());
+    assertEquals(10, msg.getEventCount());
+  }
+}
@@ -0,0 +1,84 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Drainable;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+public class TestWatchResponseMarshaller {
+  private static Msg.KeyValue event(String key, int size) {
+    return Msg.KeyValue.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFrom(new byte[size]))
+        .setModRevision(3)
+        .build();
+  }
+
+  private static Msg.WatchResponse response(int watchId, Msg.KeyValue... events) {
+    Msg.WatchResponse.Builder builder = Msg.WatchResponse.newBuilder()
+        .setWatchId(watchId)
+        .setType(Msg.WatchResponse.Type.PUT);
+    for (Msg.KeyValue event : events) {
+      builder.addEvent(event);
+    }
+    return builder.build();
+  }
+
+  private static byte[] drain(InputStream stream) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((Drainable) stream).drainTo(out);
+    return out.toByteArray();
+  }
+
+  private static void checkRoundtrip(WatchResponseMarshaller marshaller,
+                                     Msg.WatchResponse msg) throws Exception {
+    InputStream stream = marshaller.stream(msg);
+    assertEquals(msg.getSerializedSize(), stream.available());
+    byte[] data = drain(stream);
+    assertEquals(msg.toByteString(), ByteString.copyFrom(data));
+    // Reading as a plain stream works too
+    assertEquals(msg, marshaller.parse(marshaller.stream(msg)));
+  }
+
+  @Test
+  public void testRoundtrip() throws Exception {
+    WatchResponseMarshaller marshaller = new WatchResponseMarshaller(16, 1024);
+    Msg.KeyValue a = event("a", 10);
+    Msg.KeyValue b = event("b", 10);
+
+    checkRoundtrip(marshaller, response(7, a, b, a));
+    checkRoundtrip(marshaller, response(0, a));
+    // Large events aren't cached
+    checkRoundtrip(marshaller, response(7, a, event("big", 2048)));
+    // Responses with other fields set
+    checkRoundtrip(marshaller, response(7, a).toBuilder()
+                                             .setType(Msg.WatchResponse.Type.SNAPSHOT)
+                                             .setSnapshotComplete(true)
+                                             .build());
+    checkRoundtrip(marshaller, Msg.WatchResponse.newBuilder()
+                                   .setWatchId(3)
+                                   .setType(Msg.WatchResponse.Type.CANCEL)
+                                   .setCancelReason("test")
+                                   .build());
+  }
+
+  @Test
+  public void testEncodedOnce() throws Exception {
+    WatchResponseMarshaller marshaller = new WatchResponseMarshaller(16, 1024);
+    Msg.KeyValue shared = event("shared", 10);
+    byte[] encoded = marshaller.getEncoded(shared);
+    for (int i = 0; i < 100; i++) {
+      checkRoundtrip(marshaller, response(i, shared));
+    }
+    assertSame(encoded, marshaller.getEncoded(shared));
+    // Equal but distinct events are encoded separately
+    assertNotSame(encoded, marshaller.getEncoded(event("shared", 10)));
+  }
+}